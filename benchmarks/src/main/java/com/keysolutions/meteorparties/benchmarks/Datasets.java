@@ -0,0 +1,151 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.keysolutions.meteorparties.RsvpIndex;
+
+/**
+ * Synthetic party data shaped like what the parties publication sends
+ * @author kenyee
+ */
+public final class Datasets {
+    /** number of cities parties are spread around */
+    private static final int CITY_COUNT = 200;
+    /** spread of parties around their city in degrees */
+    private static final double CITY_SPREAD = 0.1;
+    private static final String[] RSVP_VALUES = {
+        RsvpIndex.YES, RsvpIndex.NO, RsvpIndex.MAYBE
+    };
+
+    private Datasets() {
+    }
+
+    /**
+     * Gets Meteor-style ID for a synthetic party
+     * @param index party number
+     * @return party ID
+     */
+    public static String partyId(int index) {
+        return "party" + index;
+    }
+
+    /**
+     * Generates party locations clustered around cities the way real
+     * parties are, rather than spread evenly over the globe
+     * @param count number of locations
+     * @param seed random seed
+     * @return array of {lat, lon} pairs
+     */
+    public static double[][] locations(int count, long seed) {
+        Random random = new Random(seed);
+        double[][] cities = new double[CITY_COUNT][];
+        for (int i = 0; i < CITY_COUNT; i++) {
+            cities[i] = new double[] {
+                random.nextDouble() * 120.0 - 60.0, random.nextDouble() * 360.0 - 180.0
+            };
+        }
+        double[][] locations = new double[count][];
+        for (int i = 0; i < count; i++) {
+            double[] city = cities[random.nextInt(CITY_COUNT)];
+            locations[i] = new double[] {
+                city[0] + random.nextGaussian() * CITY_SPREAD,
+                Math.max(-180.0, Math.min(180.0, city[1] + random.nextGaussian() * CITY_SPREAD))
+            };
+        }
+        return locations;
+    }
+
+    /**
+     * Gets one of the generated city-centered boxes so viewport queries
+     * look at a busy area
+     * @param locations generated locations
+     * @param index which location to center on
+     * @param size box size in degrees
+     * @return {south, west, north, east}
+     */
+    public static double[] boxAround(double[][] locations, int index, double size) {
+        double[] center = locations[index % locations.length];
+        return new double[] {
+            center[0] - size / 2, center[1] - size / 2,
+            center[0] + size / 2, center[1] + size / 2
+        };
+    }
+
+    /**
+     * Generates a party's RSVP array
+     * @param count number of RSVPs
+     * @param seed random seed
+     * @return list of user/rsvp maps
+     */
+    public static List<Map<String, String>> rsvps(int count, long seed) {
+        Random random = new Random(seed);
+        List<Map<String, String>> rsvps = new ArrayList<Map<String, String>>(count);
+        for (int i = 0; i < count; i++) {
+            rsvps.add(rsvp("user" + i, RSVP_VALUES[random.nextInt(RSVP_VALUES.length)]));
+        }
+        return rsvps;
+    }
+
+    /**
+     * Copies an RSVP array with one user's RSVP changed
+     * @param rsvps RSVP array
+     * @param index which RSVP to change
+     * @return new RSVP array
+     */
+    public static List<Map<String, String>> withChangedRsvp(List<Map<String, String>> rsvps,
+            int index) {
+        List<Map<String, String>> changed = new ArrayList<Map<String, String>>(rsvps);
+        Map<String, String> old = rsvps.get(index);
+        String value = old.get("rsvp").equals(RsvpIndex.YES) ? RsvpIndex.NO : RsvpIndex.YES;
+        changed.set(index, rsvp(old.get("user"), value));
+        return changed;
+    }
+
+    /**
+     * Builds a party document like the DDP client stores it
+     * @param index party number
+     * @param lat latitude
+     * @param lon longitude
+     * @param rsvps RSVP array
+     * @return field map
+     */
+    public static Map<String, Object> partyFields(int index, double lat, double lon,
+            List<Map<String, String>> rsvps) {
+        Map<String, Object> fields = new HashMap<String, Object>();
+        fields.put("title", "Party " + index);
+        fields.put("description", "Synthetic party number " + index);
+        fields.put("owner", "user" + (index % 1000));
+        fields.put("lat", lat);
+        fields.put("lon", lon);
+        fields.put("public", (index % 4) != 0);
+        fields.put("rsvps", rsvps);
+        return fields;
+    }
+
+    private static Map<String, String> rsvp(String userId, String value) {
+        Map<String, String> rsvp = new HashMap<String, String>();
+        rsvp.put("user", userId);
+        rsvp.put("rsvp", value);
+        return rsvp;
+    }
+}
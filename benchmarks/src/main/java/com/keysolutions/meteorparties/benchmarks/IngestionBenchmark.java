@@ -0,0 +1,159 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.keysolutions.meteorparties.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.keysolutions.ddpclient.DDPClient.DdpMessageType;
+import com.keysolutions.meteorparties.Party;
+import com.keysolutions.meteorparties.PartyCollection;
+
+/**
+ * Ingestion rate of the per-message work MyDDPState.broadcastSubscriptionChanged
+ * does for the parties collection, which it hands to PartyCollection:
+ * wrapping the document and updating the parties map, the user RSVP index
+ * and the spatial index.  The persistent store is off (the default) and
+ * the batched broadcast to the UI is left out since it needs Android.
+ * <p>
+ * Documents are kept in a map like the DDP client's collection, which
+ * applies "changed" fields to the document in place before telling us.
+ * @author kenyee
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Thread)
+public class IngestionBenchmark {
+    private static final int RSVPS_PER_PARTY = 4;
+
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int partyCount;
+
+    private PartyCollection mPartyCollection;
+    /** party documents like the DDP client's parties collection */
+    private HashMap<String, Map<String, Object>> mDocuments;
+    private String[] mIds;
+    /** documents each party alternates between */
+    private List<Map<String, Object>> mFields;
+    /** same documents moved and with one RSVP changed */
+    private List<Map<String, Object>> mChangedFields;
+    private int mNext;
+    private boolean mUseChanged;
+
+    @Setup
+    public void setup() {
+        double[][] locations = Datasets.locations(partyCount, 1);
+        List<Map<String, String>> rsvps = Datasets.rsvps(RSVPS_PER_PARTY, 2);
+        List<Map<String, String>> changedRsvps = Datasets.withChangedRsvp(rsvps, 0);
+        mPartyCollection = new PartyCollection(new PartyCollection.Listener() {
+            @Override
+            public void onPartySaved(Party party) {
+            }
+            @Override
+            public void onPartyRemoved(String docId) {
+            }
+        });
+        mDocuments = new HashMap<String, Map<String, Object>>();
+        mIds = new String[partyCount];
+        mFields = new ArrayList<Map<String, Object>>(partyCount);
+        mChangedFields = new ArrayList<Map<String, Object>>(partyCount);
+        for (int i = 0; i < partyCount; i++) {
+            mIds[i] = Datasets.partyId(i);
+            mFields.add(Datasets.partyFields(i, locations[i][0], locations[i][1], rsvps));
+            mChangedFields.add(Datasets.partyFields(i, locations[i][0] + 0.001, locations[i][1],
+                    changedRsvps));
+            added(mIds[i], mFields.get(i));
+        }
+        // first pass applies the changed documents
+        mUseChanged = true;
+    }
+
+    /**
+     * DDP "changed" message for a party that moved and got an RSVP
+     */
+    @Benchmark
+    public String changed() {
+        int i = nextParty();
+        String id = mIds[i];
+        mDocuments.get(id).putAll(fields(i));
+        return mPartyCollection.apply(DdpMessageType.UPDATED, id, mDocuments.get(id));
+    }
+
+    /**
+     * DDP "removed" then "added" for a party
+     */
+    @Benchmark
+    public String removedAndAdded() {
+        int i = nextParty();
+        String id = mIds[i];
+        mDocuments.remove(id);
+        mPartyCollection.apply(DdpMessageType.REMOVED, id, null);
+        return added(id, fields(i));
+    }
+
+    /**
+     * DDP "added" for a party we kept across a reconnect that the
+     * server re-sent unchanged
+     */
+    @Benchmark
+    public String reconnectAdded() {
+        int i = nextParty();
+        String id = mIds[i];
+        mPartyCollection.getUnconfirmedPartyIds().add(id);
+        Map<String, Object> document = new HashMap<String, Object>(mDocuments.get(id));
+        mDocuments.put(id, document);
+        return mPartyCollection.apply(DdpMessageType.ADDED, id, document);
+    }
+
+    private Map<String, Object> fields(int i) {
+        return (mUseChanged ? mChangedFields : mFields).get(i);
+    }
+
+    private String added(String id, Map<String, Object> fields) {
+        Map<String, Object> document = new HashMap<String, Object>(fields);
+        mDocuments.put(id, document);
+        return mPartyCollection.apply(DdpMessageType.ADDED, id, document);
+    }
+
+    private int nextParty() {
+        int i = mNext;
+        if (i + 1 == mIds.length) {
+            mNext = 0;
+            mUseChanged = !mUseChanged;
+        } else {
+            mNext = i + 1;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.keysolutions.meteorparties.AttendeeBucket;
+
+/**
+ * Attendee bucketing behind Party.getMarkerColor/getMarkerBucket over
+ * every party, e.g. when the map redraws all markers.
+ * @author kenyee
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Thread)
+public class MarkerBucketBenchmark {
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int partyCount;
+
+    private int[] mAttendees;
+
+    @Setup
+    public void setup() {
+        // most parties are small, a few are huge
+        Random random = new Random(1);
+        mAttendees = new int[partyCount];
+        for (int i = 0; i < partyCount; i++) {
+            mAttendees[i] = (int) Math.min(10000, -Math.log(1.0 - random.nextDouble()) * 15);
+        }
+    }
+
+    /**
+     * Counts how many markers use each bucket's icon
+     */
+    @Benchmark
+    public int[] bucketAll() {
+        int[] counts = new int[AttendeeBucket.BUCKET_COUNT];
+        for (int i = 0; i < mAttendees.length; i++) {
+            counts[AttendeeBucket.forAttendees(mAttendees[i])]++;
+        }
+        return counts;
+    }
+}
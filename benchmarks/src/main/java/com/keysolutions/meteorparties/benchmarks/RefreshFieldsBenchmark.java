@@ -0,0 +1,114 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.keysolutions.meteorparties.Party;
+
+/**
+ * Party.refreshFields cost with small and large RSVP lists, for an
+ * update that changes nothing and one that flips a single RSVP.
+ * <p>
+ * Every party keeps its own RSVP index, so a million parties with
+ * thousands of RSVPs each won't fit in memory; large lists are only
+ * run on the smaller party counts.  Parties are kept out of the user
+ * RSVP index, which would otherwise hold every RSVP of every party.
+ * @author kenyee
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Thread)
+public class RefreshFieldsBenchmark {
+    /** party count and RSVPs per party */
+    @Param({ "1000x4", "1000x1000", "100000x4", "1000000x4", "10000x1000" })
+    public String dataset;
+
+    private Party[] mParties;
+    /** documents each party alternates between */
+    private List<Map<String, Object>> mFields;
+    /** same documents with one RSVP changed */
+    private List<Map<String, Object>> mChangedFields;
+    private int mNext;
+    private boolean mUseChanged;
+
+    @Setup
+    public void setup() {
+        String[] sizes = dataset.split("x");
+        int partyCount = Integer.parseInt(sizes[0]);
+        int rsvpCount = Integer.parseInt(sizes[1]);
+        double[][] locations = Datasets.locations(partyCount, 1);
+        // parties share RSVP arrays to keep the documents small; each
+        // party still builds its own RSVP index from them
+        List<Map<String, String>> rsvps = Datasets.rsvps(rsvpCount, 2);
+        List<Map<String, String>> changedRsvps = Datasets.withChangedRsvp(rsvps, rsvpCount / 2);
+        mParties = new Party[partyCount];
+        mFields = new ArrayList<Map<String, Object>>(partyCount);
+        mChangedFields = new ArrayList<Map<String, Object>>(partyCount);
+        for (int i = 0; i < partyCount; i++) {
+            mFields.add(Datasets.partyFields(i, locations[i][0], locations[i][1], rsvps));
+            mChangedFields.add(Datasets.partyFields(i, locations[i][0], locations[i][1],
+                    changedRsvps));
+            mParties[i] = new Party(Datasets.partyId(i), mFields.get(i), false);
+        }
+    }
+
+    /**
+     * DDP re-sent the party but nothing changed (e.g. after a reconnect)
+     */
+    @Benchmark
+    public boolean refreshUnchanged() {
+        int i = nextParty();
+        return mParties[i].refreshFields();
+    }
+
+    /**
+     * One person changed their RSVP
+     */
+    @Benchmark
+    public boolean refreshOneRsvpChanged() {
+        int i = nextParty();
+        if (i == 0) {
+            mUseChanged = !mUseChanged;
+        }
+        return mParties[i].setFields((mUseChanged ? mChangedFields : mFields).get(i));
+    }
+
+    private int nextParty() {
+        int i = mNext;
+        mNext = (i + 1 == mParties.length) ? 0 : i + 1;
+        return i;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.keysolutions.meteorparties.PartyClusterer;
+import com.keysolutions.meteorparties.PartyGridIndex;
+
+/**
+ * Visible-party filtering from PartyMapFragment.showVisibleParties: the
+ * spatial index lookup used now, the full scan it replaced, and the
+ * cluster lookup used when zoomed out.
+ * @author kenyee
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Thread)
+public class VisiblePartiesBenchmark {
+    /** same values PartyMapFragment uses */
+    private static final int CLUSTER_MAX_ZOOM = 13;
+    private static final int CLUSTER_SIZE_PX = 64;
+    /** about a phone screen of a city at zoom 13 */
+    private static final double CITY_VIEWPORT = 0.05;
+    /** about a phone screen at zoom 8 */
+    private static final double REGION_VIEWPORT = 2.0;
+    private static final int REGION_ZOOM = 8;
+    /** number of different viewports to cycle through */
+    private static final int VIEWPORT_COUNT = 64;
+
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int partyCount;
+
+    private String[] mIds;
+    private double[][] mLocations;
+    private PartyGridIndex mPartyIndex;
+    private PartyClusterer mClusterer;
+    private double[][] mCityBoxes;
+    private double[][] mRegionBoxes;
+    private int mNext;
+
+    @Setup
+    public void setup() {
+        mLocations = Datasets.locations(partyCount, 1);
+        mIds = new String[partyCount];
+        mPartyIndex = new PartyGridIndex();
+        mClusterer = new PartyClusterer(CLUSTER_MAX_ZOOM, CLUSTER_SIZE_PX);
+        for (int i = 0; i < partyCount; i++) {
+            mIds[i] = Datasets.partyId(i);
+            mPartyIndex.put(mIds[i], mLocations[i][0], mLocations[i][1]);
+            mClusterer.put(mIds[i], mLocations[i][0], mLocations[i][1], i % 50);
+        }
+        mCityBoxes = new double[VIEWPORT_COUNT][];
+        mRegionBoxes = new double[VIEWPORT_COUNT][];
+        for (int i = 0; i < VIEWPORT_COUNT; i++) {
+            int center = (int) ((long) i * partyCount / VIEWPORT_COUNT);
+            mCityBoxes[i] = Datasets.boxAround(mLocations, center, CITY_VIEWPORT);
+            mRegionBoxes[i] = Datasets.boxAround(mLocations, center, REGION_VIEWPORT);
+        }
+    }
+
+    /**
+     * Spatial index lookup showVisibleParties does now
+     */
+    @Benchmark
+    public List<String> gridIndexQuery() {
+        double[] box = mCityBoxes[nextViewport()];
+        return mPartyIndex.query(box[0], box[1], box[2], box[3]);
+    }
+
+    /**
+     * Scan of every party that showVisibleParties used to do
+     */
+    @Benchmark
+    public List<String> fullScan() {
+        double[] box = mCityBoxes[nextViewport()];
+        List<String> visible = new ArrayList<String>();
+        for (int i = 0; i < mLocations.length; i++) {
+            double lat = mLocations[i][0];
+            double lon = mLocations[i][1];
+            if ((lat >= box[0]) && (lat <= box[2]) && (lon >= box[1]) && (lon <= box[3])) {
+                visible.add(mIds[i]);
+            }
+        }
+        return visible;
+    }
+
+    /**
+     * Cluster lookup showVisibleParties does when zoomed out
+     */
+    @Benchmark
+    public List<PartyClusterer.Cluster> clusterQuery() {
+        double[] box = mRegionBoxes[nextViewport()];
+        return mClusterer.getClusters(REGION_ZOOM, box[0], box[1], box[2], box[3]);
+    }
+
+    private int nextViewport() {
+        int i = mNext;
+        mNext = (i + 1) % VIEWPORT_COUNT;
+        return i;
+    }
+}
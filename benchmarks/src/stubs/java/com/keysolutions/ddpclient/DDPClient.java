@@ -0,0 +1,33 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.keysolutions.ddpclient;
+
+/**
+ * Stand-in for the DDP client library, which isn't available to this
+ * build.  The app classes benchmarked here only use its message type
+ * names.
+ * @author kenyee
+ */
+public class DDPClient {
+    /**
+     * DDP message types
+     */
+    public static class DdpMessageType {
+        public static final String ADDED = "added";
+        public static final String REMOVED = "removed";
+        public static final String UPDATED = "changed";
+    }
+}
@@ -0,0 +1,32 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.keysolutions.meteorparties;
+
+/**
+ * Stand-in for the app's MarkerIcons, which needs the Google Maps
+ * classes.  Party only asks it for a marker hue.
+ * @author kenyee
+ */
+public class MarkerIcons {
+    /**
+     * Gets marker hue for an attendee bucket
+     * @param bucket attendee bucket from {@link AttendeeBucket}
+     * @return hue in degrees
+     */
+    public static float getHue(int bucket) {
+        return bucket * 360f / AttendeeBucket.BUCKET_COUNT;
+    }
+}
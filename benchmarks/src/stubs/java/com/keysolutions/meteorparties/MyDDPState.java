@@ -0,0 +1,55 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.keysolutions.meteorparties;
+
+/**
+ * Stand-in for the app's MyDDPState so the real Party class can be
+ * benchmarked without Android or the DDP client.  It only has what
+ * Party calls: a logged in user and the user to party RSVP index.
+ * @author kenyee
+ */
+public class MyDDPState {
+    /** user the benchmarks are logged in as (one of the Datasets users) */
+    public static final String USER_ID = "user0";
+
+    private static final MyDDPState sInstance = new MyDDPState();
+
+    private final UserRsvpIndex mUserRsvpIndex = new UserRsvpIndex();
+
+    /**
+     * Gets the singleton instance
+     * @return instance
+     */
+    public static MyDDPState getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Gets logged in user's ID
+     * @return user ID
+     */
+    public String getUserId() {
+        return USER_ID;
+    }
+
+    /**
+     * Gets index of each user's RSVPs across parties
+     * @return user RSVP index
+     */
+    public UserRsvpIndex getUserRsvpIndex() {
+        return mUserRsvpIndex;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties.ddpserver;
+
+import java.lang.reflect.Type;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Local stand-in for a Meteor Parties deployment.  Speaks enough DDP for
+ * the android-ddp-client (connect, ping, sub/unsub with
+ * added/changed/removed/ready, method/result/updated and password or
+ * resume token logins) and can run a {@link LoadGenerator} so the app
+ * gets a realistic stream of changes without a real server.
+ * <p>
+ * All DDP work runs on one dispatcher thread, so sessions, the document
+ * store and the load generator don't need any locking and each client
+ * gets its messages in order.
+ * @author kenyee
+ */
+public class DdpServer extends WebSocketServer implements DocumentStore.ChangeListener {
+    private static final Type MESSAGE_TYPE = new TypeToken<Map<String, Object>>() {}.getType();
+
+    private final PartiesModel mModel;
+    private final Gson mGson;
+    /** runs everything that touches sessions or documents */
+    private final ExecutorService mDispatcher;
+    /** client connection to its session; only used on the dispatcher */
+    private final Map<WebSocket, DdpSession> mSessions;
+    private final AtomicLong mMessagesReceived;
+    private final AtomicLong mMessagesSent;
+    private final AtomicLong mBytesSent;
+
+    /**
+     * Constructor
+     * @param port port to listen on
+     * @param model Meteor Parties methods and data
+     */
+    public DdpServer(int port, PartiesModel model) {
+        super(new InetSocketAddress(port));
+        mModel = model;
+        mGson = new GsonBuilder().disableHtmlEscaping().create();
+        mDispatcher = Executors.newSingleThreadExecutor(namedThreads("ddp-dispatcher"));
+        mSessions = new HashMap<WebSocket, DdpSession>();
+        mMessagesReceived = new AtomicLong();
+        mMessagesSent = new AtomicLong();
+        mBytesSent = new AtomicLong();
+        model.getStore().setChangeListener(this);
+        setReuseAddr(true);
+        setTcpNoDelay(true);
+    }
+
+    /**
+     * Runs a task on the dispatcher thread
+     * @param task task that touches sessions or documents
+     */
+    public void execute(Runnable task) {
+        mDispatcher.execute(task);
+    }
+
+    /**
+     * Sends a DDP message to a client
+     * @param conn client's websocket
+     * @param msg DDP message fields
+     */
+    public void send(WebSocket conn, Map<String, Object> msg) {
+        String json = mGson.toJson(msg);
+        try {
+            conn.send(json);
+            mMessagesSent.incrementAndGet();
+            mBytesSent.addAndGet(json.length());
+        } catch (WebsocketNotConnectedException e) {
+            // client went away; onClose will clean up its session
+        }
+    }
+
+    @Override
+    public void onStart() {
+        System.out.println("DDP server listening on port " + getPort());
+    }
+
+    @Override
+    public void onOpen(final WebSocket conn, ClientHandshake handshake) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                mSessions.put(conn, new DdpSession(DdpServer.this, conn, mModel));
+                // Meteor says hello before the client connects
+                Map<String, Object> hello = new LinkedHashMap<String, Object>();
+                hello.put("server_id", "0");
+                send(conn, hello);
+            }
+        });
+    }
+
+    @Override
+    public void onMessage(final WebSocket conn, final String message) {
+        mMessagesReceived.incrementAndGet();
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                DdpSession session = mSessions.get(conn);
+                if (session == null) {
+                    return;
+                }
+                Map<String, Object> msg;
+                try {
+                    msg = mGson.fromJson(message, MESSAGE_TYPE);
+                } catch (JsonSyntaxException e) {
+                    msg = null;
+                }
+                if (msg == null) {
+                    Map<String, Object> error = new LinkedHashMap<String, Object>();
+                    error.put("msg", "error");
+                    error.put("reason", "Bad request");
+                    send(conn, error);
+                    return;
+                }
+                session.onMessage(msg);
+            }
+        });
+    }
+
+    @Override
+    public void onClose(final WebSocket conn, int code, String reason, boolean remote) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                mSessions.remove(conn);
+            }
+        });
+    }
+
+    @Override
+    public void onError(WebSocket conn, Exception ex) {
+        System.err.println("DDP server error: " + ex);
+    }
+
+    @Override
+    public void onAdded(String collection, String id, Map<String, Object> doc) {
+        for (DdpSession session : mSessions.values()) {
+            session.onDocumentAdded(collection, id, doc);
+        }
+    }
+
+    @Override
+    public void onChanged(String collection, String id, Map<String, Object> doc,
+            Map<String, Object> changedFields) {
+        for (DdpSession session : mSessions.values()) {
+            session.onDocumentChanged(collection, id, doc, changedFields);
+        }
+    }
+
+    @Override
+    public void onRemoved(String collection, String id) {
+        for (DdpSession session : mSessions.values()) {
+            session.onDocumentRemoved(collection, id);
+        }
+    }
+
+    /**
+     * Starts logging throughput every so often
+     * @param scheduler scheduler to log from
+     * @param intervalSeconds seconds between log lines
+     * @param generator load generator to report on or null
+     */
+    public void logStats(ScheduledExecutorService scheduler, final int intervalSeconds,
+            final LoadGenerator generator) {
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            private long mLastReceived;
+            private long mLastSent;
+            private long mLastBytes;
+            private long mLastChanges;
+
+            @Override
+            public void run() {
+                long received = mMessagesReceived.get();
+                long sent = mMessagesSent.get();
+                long bytes = mBytesSent.get();
+                long changes = (generator != null) ? generator.getChangeCount() : 0;
+                System.out.println(String.format(
+                        "clients=%d in=%d msg/s out=%d msg/s (%.1f KB/s) changes=%d/s",
+                        getConnections().size(),
+                        (received - mLastReceived) / intervalSeconds,
+                        (sent - mLastSent) / intervalSeconds,
+                        (bytes - mLastBytes) / 1024.0 / intervalSeconds,
+                        (changes - mLastChanges) / intervalSeconds));
+                mLastReceived = received;
+                mLastSent = sent;
+                mLastBytes = bytes;
+                mLastChanges = changes;
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private static ThreadFactory namedThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Runs the server
+     * @param args command line options; see usage()
+     * @throws Exception if the data couldn't be seeded
+     */
+    public static void main(String[] args) throws Exception {
+        int port = 3000;
+        int users = 100;
+        int parties = 0;
+        int rsvps = 0;
+        double rate = 0;
+        double move = 0.1;
+        double churn = 0.05;
+        long seed = 1;
+        int statsSeconds = 10;
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if ("--help".equals(option) || (i + 1 >= args.length)) {
+                usage();
+                return;
+            }
+            String value = args[++i];
+            if ("--port".equals(option)) {
+                port = Integer.parseInt(value);
+            } else if ("--users".equals(option)) {
+                users = Integer.parseInt(value);
+            } else if ("--parties".equals(option)) {
+                parties = Integer.parseInt(value);
+            } else if ("--rsvps".equals(option)) {
+                rsvps = Integer.parseInt(value);
+            } else if ("--rate".equals(option)) {
+                rate = Double.parseDouble(value);
+            } else if ("--move".equals(option)) {
+                move = Double.parseDouble(value);
+            } else if ("--churn".equals(option)) {
+                churn = Double.parseDouble(value);
+            } else if ("--seed".equals(option)) {
+                seed = Long.parseLong(value);
+            } else if ("--stats".equals(option)) {
+                statsSeconds = Integer.parseInt(value);
+            } else {
+                usage();
+                return;
+            }
+        }
+
+        PartiesModel model = new PartiesModel(new DocumentStore(), new Random(seed));
+        LoadGenerator generator = new LoadGenerator(model, seed);
+        generator.setChangeMix(move, churn);
+        long start = System.nanoTime();
+        generator.seedUsers(users);
+        generator.seedParties(parties, rsvps);
+        System.out.println(String.format("Seeded %d users and %d parties with %d RSVPs in %d ms",
+                users, parties, rsvps, (System.nanoTime() - start) / 1000000));
+        if (users > 0) {
+            System.out.println("Log in as " + LoadGenerator.userEmail(0) + " / "
+                    + LoadGenerator.PASSWORD);
+        }
+
+        DdpServer server = new DdpServer(port, model);
+        server.start();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+                namedThreads("ddp-scheduler"));
+        if (rate > 0) {
+            generator.start(server, scheduler, rate);
+        }
+        if (statsSeconds > 0) {
+            server.logStats(scheduler, statsSeconds, generator);
+        }
+    }
+
+    private static void usage() {
+        System.out.println("Usage: DdpServer [options]\n"
+                + "  --port N      port to listen on (3000)\n"
+                + "  --users N     users to seed as userN@example.com (100)\n"
+                + "  --parties N   parties to seed (0)\n"
+                + "  --rsvps N     RSVPs per seeded party (0)\n"
+                + "  --rate N      random changes per second (0)\n"
+                + "  --move F      fraction of changes that move a party (0.1)\n"
+                + "  --churn F     fraction of changes that add/remove a party (0.05)\n"
+                + "  --seed N      random seed (1)\n"
+                + "  --stats N     seconds between throughput log lines, 0 for none (10)");
+    }
+}
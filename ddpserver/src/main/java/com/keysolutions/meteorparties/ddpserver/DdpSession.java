@@ -0,0 +1,462 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties.ddpserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.java_websocket.WebSocket;
+
+/**
+ * One client's DDP session: handles its messages and keeps track of
+ * which documents it has been sent so overlapping subscriptions only
+ * send each document once (Meteor's "merge box").
+ * <p>
+ * Only used from the server's dispatcher thread.
+ * @author kenyee
+ */
+public class DdpSession {
+    /** DDP versions we speak, in order of preference */
+    private static final List<String> SUPPORTED_VERSIONS = Collections.unmodifiableList(
+            Arrays.asList("1", "pre2", "pre1"));
+
+    /**
+     * Publication a client subscribed to
+     */
+    private static class Subscription {
+        String id;
+        String name;
+        String collection;
+        /** whether this is a bounding box subscription */
+        boolean hasBounds;
+        double south;
+        double west;
+        double north;
+        double east;
+
+        /**
+         * Creates subscription for a known publication
+         * @return null if there's no such publication
+         */
+        static Subscription create(String id, String name, List<Object> params) {
+            Subscription sub = new Subscription();
+            sub.id = id;
+            sub.name = name;
+            if ("parties".equals(name)) {
+                sub.collection = DocumentStore.PARTIES;
+                // optional {south, west, north, east} like ViewportBounds.toParams()
+                Object bounds = ((params != null) && !params.isEmpty()) ? params.get(0) : null;
+                if (bounds instanceof Map) {
+                    Map<?, ?> box = (Map<?, ?>) bounds;
+                    if ((box.get("south") instanceof Number) && (box.get("west") instanceof Number)
+                            && (box.get("north") instanceof Number)
+                            && (box.get("east") instanceof Number)) {
+                        sub.hasBounds = true;
+                        sub.south = ((Number) box.get("south")).doubleValue();
+                        sub.west = ((Number) box.get("west")).doubleValue();
+                        sub.north = ((Number) box.get("north")).doubleValue();
+                        sub.east = ((Number) box.get("east")).doubleValue();
+                    }
+                }
+            } else if ("directory".equals(name)) {
+                sub.collection = DocumentStore.USERS;
+            } else {
+                return null;
+            }
+            return sub;
+        }
+
+        /**
+         * Whether this subscription publishes a document
+         * @param collection document's collection
+         * @param doc document fields
+         * @param userId session's logged in user or null
+         */
+        boolean covers(String collection, Map<String, Object> doc, String userId) {
+            if (!this.collection.equals(collection)) {
+                return false;
+            }
+            if (!DocumentStore.PARTIES.equals(collection)) {
+                return true;
+            }
+            if (!PartiesModel.canSee(doc, userId)) {
+                return false;
+            }
+            if (!hasBounds) {
+                return true;
+            }
+            Object lat = doc.get("lat");
+            Object lon = doc.get("lon");
+            if (!(lat instanceof Number) || !(lon instanceof Number)) {
+                return false;
+            }
+            double latitude = ((Number) lat).doubleValue();
+            double longitude = ((Number) lon).doubleValue();
+            if ((latitude < south) || (latitude > north)) {
+                return false;
+            }
+            if (west > east) {
+                // crosses the 180th meridian
+                return (longitude >= west) || (longitude <= east);
+            }
+            return (longitude >= west) && (longitude <= east);
+        }
+    }
+
+    private final DdpServer mServer;
+    private final WebSocket mConn;
+    private final PartiesModel mModel;
+    private final DocumentStore mStore;
+    private boolean mIsConnected;
+    private String mUserId;
+    /** subscription ID to subscription */
+    private final Map<String, Subscription> mSubs;
+    /** collection name to IDs of documents the client has */
+    private final Map<String, Set<String>> mSentIds;
+
+    /**
+     * Constructor
+     * @param server server that owns this session
+     * @param conn client's websocket
+     * @param model Meteor Parties methods and data
+     */
+    public DdpSession(DdpServer server, WebSocket conn, PartiesModel model) {
+        mServer = server;
+        mConn = conn;
+        mModel = model;
+        mStore = model.getStore();
+        mSubs = new LinkedHashMap<String, Subscription>();
+        mSentIds = new HashMap<String, Set<String>>();
+    }
+
+    /**
+     * Gets logged in user
+     * @return user ID or null if not logged in
+     */
+    public String getUserId() {
+        return mUserId;
+    }
+
+    /**
+     * Switches logged in user; subscriptions are rerun like Meteor does
+     * because what a user can see depends on who they are
+     * @param userId user ID or null to log out
+     */
+    public void setUserId(String userId) {
+        if ((userId == null) ? (mUserId == null) : userId.equals(mUserId)) {
+            return;
+        }
+        mUserId = userId;
+        republish(DocumentStore.PARTIES);
+    }
+
+    /**
+     * Handles a message from the client
+     * @param msg parsed DDP message
+     */
+    public void onMessage(Map<String, Object> msg) {
+        Object type = msg.get("msg");
+        if (type == null) {
+            // not a DDP message
+            return;
+        }
+        if ("connect".equals(type)) {
+            connect(msg);
+        } else if (!mIsConnected) {
+            sendError("Must connect first", msg);
+        } else if ("ping".equals(type)) {
+            Map<String, Object> pong = message("pong");
+            if (msg.containsKey("id")) {
+                pong.put("id", msg.get("id"));
+            }
+            send(pong);
+        } else if ("pong".equals(type)) {
+            // reply to a heartbeat we never send, so nothing to do
+        } else if ("sub".equals(type)) {
+            subscribe(stringField(msg, "id"), stringField(msg, "name"), listField(msg, "params"));
+        } else if ("unsub".equals(type)) {
+            unsubscribe(stringField(msg, "id"));
+        } else if ("method".equals(type)) {
+            callMethod(stringField(msg, "id"), stringField(msg, "method"),
+                    listField(msg, "params"));
+        } else {
+            sendError("Bad request", msg);
+        }
+    }
+
+    /**
+     * Called after a document was inserted
+     * @param collection collection name
+     * @param id document ID
+     * @param doc document fields
+     */
+    public void onDocumentAdded(String collection, String id, Map<String, Object> doc) {
+        if (isPublished(collection, doc)) {
+            sendAdded(collection, id, doc);
+        }
+    }
+
+    /**
+     * Called after a document was updated
+     * @param collection collection name
+     * @param id document ID
+     * @param doc document fields after the update
+     * @param changedFields fields that were set; null values mean cleared
+     */
+    public void onDocumentChanged(String collection, String id, Map<String, Object> doc,
+            Map<String, Object> changedFields) {
+        boolean wasSent = getSentIds(collection).contains(id);
+        boolean isPublished = isPublished(collection, doc);
+        if (wasSent && isPublished) {
+            sendChanged(collection, id, changedFields);
+        } else if (wasSent) {
+            // e.g. party moved out of the subscribed box
+            sendRemoved(collection, id);
+        } else if (isPublished) {
+            sendAdded(collection, id, doc);
+        }
+    }
+
+    /**
+     * Called after a document was removed
+     * @param collection collection name
+     * @param id document ID
+     */
+    public void onDocumentRemoved(String collection, String id) {
+        if (getSentIds(collection).contains(id)) {
+            sendRemoved(collection, id);
+        }
+    }
+
+    private void connect(Map<String, Object> msg) {
+        if (mIsConnected) {
+            return;
+        }
+        Object version = msg.get("version");
+        if (!SUPPORTED_VERSIONS.contains(version)) {
+            Map<String, Object> failed = message("failed");
+            failed.put("version", SUPPORTED_VERSIONS.get(0));
+            send(failed);
+            return;
+        }
+        mIsConnected = true;
+        Map<String, Object> connected = message("connected");
+        connected.put("session", mModel.newId());
+        send(connected);
+    }
+
+    private void subscribe(String subId, String name, List<Object> params) {
+        if ((subId == null) || mSubs.containsKey(subId)) {
+            return;
+        }
+        Subscription sub = Subscription.create(subId, name, params);
+        if (sub == null) {
+            Map<String, Object> nosub = message("nosub");
+            nosub.put("id", subId);
+            nosub.put("error", new MethodException(404,
+                    "Subscription '" + name + "' not found").toFields());
+            send(nosub);
+            return;
+        }
+        mSubs.put(subId, sub);
+        if (sub.hasBounds) {
+            for (String id : mStore.queryParties(sub.south, sub.west, sub.north, sub.east)) {
+                publishIfCovered(sub, id, mStore.get(sub.collection, id));
+            }
+        } else {
+            for (Map.Entry<String, Map<String, Object>> doc
+                    : mStore.getCollection(sub.collection).entrySet()) {
+                publishIfCovered(sub, doc.getKey(), doc.getValue());
+            }
+        }
+        Map<String, Object> ready = message("ready");
+        ready.put("subs", Collections.singletonList(subId));
+        send(ready);
+    }
+
+    private void publishIfCovered(Subscription sub, String id, Map<String, Object> doc) {
+        if ((doc != null) && !getSentIds(sub.collection).contains(id)
+                && sub.covers(sub.collection, doc, mUserId)) {
+            sendAdded(sub.collection, id, doc);
+        }
+    }
+
+    private void unsubscribe(String subId) {
+        Subscription sub = mSubs.remove(subId);
+        if (sub != null) {
+            republish(sub.collection);
+        }
+        Map<String, Object> nosub = message("nosub");
+        nosub.put("id", subId);
+        send(nosub);
+    }
+
+    /**
+     * Brings the client's copy of a collection in line with what its
+     * subscriptions publish now
+     * @param collection collection name
+     */
+    private void republish(String collection) {
+        Set<String> published = new HashSet<String>();
+        for (Subscription sub : mSubs.values()) {
+            if (!sub.collection.equals(collection)) {
+                continue;
+            }
+            Iterable<String> ids = sub.hasBounds
+                    ? mStore.queryParties(sub.south, sub.west, sub.north, sub.east)
+                    : mStore.getCollection(collection).keySet();
+            for (String id : ids) {
+                Map<String, Object> doc = mStore.get(collection, id);
+                if ((doc != null) && sub.covers(collection, doc, mUserId)) {
+                    published.add(id);
+                }
+            }
+        }
+        Set<String> sentIds = getSentIds(collection);
+        List<String> removed = new ArrayList<String>();
+        for (String id : sentIds) {
+            if (!published.contains(id)) {
+                removed.add(id);
+            }
+        }
+        for (String id : removed) {
+            sendRemoved(collection, id);
+        }
+        for (String id : published) {
+            if (!sentIds.contains(id)) {
+                sendAdded(collection, id, mStore.get(collection, id));
+            }
+        }
+    }
+
+    private void callMethod(String methodId, String method, List<Object> params) {
+        Map<String, Object> result = message("result");
+        result.put("id", methodId);
+        try {
+            Object value = mModel.call(this, method, params);
+            if (value != null) {
+                result.put("result", value);
+            }
+        } catch (MethodException e) {
+            result.put("error", e.toFields());
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            result.put("error", new MethodException(500, "Internal server error").toFields());
+        }
+        send(result);
+        // writes were already sent from the store's change listener, so
+        // the client has seen everything this method did
+        Map<String, Object> updated = message("updated");
+        updated.put("methods", Collections.singletonList(methodId));
+        send(updated);
+    }
+
+    /**
+     * Whether any of the client's subscriptions publish a document
+     */
+    private boolean isPublished(String collection, Map<String, Object> doc) {
+        for (Subscription sub : mSubs.values()) {
+            if (sub.covers(collection, doc, mUserId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Set<String> getSentIds(String collection) {
+        Set<String> ids = mSentIds.get(collection);
+        if (ids == null) {
+            ids = new HashSet<String>();
+            mSentIds.put(collection, ids);
+        }
+        return ids;
+    }
+
+    private void sendAdded(String collection, String id, Map<String, Object> doc) {
+        getSentIds(collection).add(id);
+        Map<String, Object> added = message("added");
+        added.put("collection", collection);
+        added.put("id", id);
+        added.put("fields", doc);
+        send(added);
+    }
+
+    private void sendChanged(String collection, String id, Map<String, Object> changedFields) {
+        Map<String, Object> fields = new LinkedHashMap<String, Object>();
+        List<String> cleared = new ArrayList<String>();
+        for (Map.Entry<String, Object> field : changedFields.entrySet()) {
+            if (field.getValue() == null) {
+                cleared.add(field.getKey());
+            } else {
+                fields.put(field.getKey(), field.getValue());
+            }
+        }
+        Map<String, Object> changed = message("changed");
+        changed.put("collection", collection);
+        changed.put("id", id);
+        if (!fields.isEmpty()) {
+            changed.put("fields", fields);
+        }
+        if (!cleared.isEmpty()) {
+            changed.put("cleared", cleared);
+        }
+        send(changed);
+    }
+
+    private void sendRemoved(String collection, String id) {
+        getSentIds(collection).remove(id);
+        Map<String, Object> removed = message("removed");
+        removed.put("collection", collection);
+        removed.put("id", id);
+        send(removed);
+    }
+
+    private void sendError(String reason, Map<String, Object> offendingMessage) {
+        Map<String, Object> error = message("error");
+        error.put("reason", reason);
+        error.put("offendingMessage", offendingMessage);
+        send(error);
+    }
+
+    private void send(Map<String, Object> msg) {
+        mServer.send(mConn, msg);
+    }
+
+    private static Map<String, Object> message(String type) {
+        Map<String, Object> msg = new LinkedHashMap<String, Object>();
+        msg.put("msg", type);
+        return msg;
+    }
+
+    private static String stringField(Map<String, Object> msg, String name) {
+        Object value = msg.get(name);
+        return (value instanceof String) ? (String) value : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> listField(Map<String, Object> msg, String name) {
+        Object value = msg.get(name);
+        return (value instanceof List) ? (List<Object>) value : new ArrayList<Object>();
+    }
+}
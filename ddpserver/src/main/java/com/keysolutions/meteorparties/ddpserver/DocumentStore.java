@@ -0,0 +1,215 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties.ddpserver;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.keysolutions.meteorparties.PartyGridIndex;
+
+/**
+ * In-memory stand-in for the server's Mongo collections.  Documents are
+ * stored as field maps like the DDP client keeps them, and the parties
+ * collection is indexed by location so bounding box subscriptions don't
+ * scan the whole collection.
+ * <p>
+ * Not thread-safe: everything runs on the server's dispatcher thread,
+ * which is also what keeps DDP messages to each client in order.
+ * @author kenyee
+ */
+public class DocumentStore {
+    /** collection name for parties */
+    public static final String PARTIES = "parties";
+    /** collection name for users */
+    public static final String USERS = "users";
+
+    /**
+     * Gets told about every write so subscriptions can be updated
+     */
+    public interface ChangeListener {
+        /**
+         * Called after a document was inserted
+         * @param collection collection name
+         * @param id document ID
+         * @param doc document fields
+         */
+        void onAdded(String collection, String id, Map<String, Object> doc);
+        /**
+         * Called after a document was updated
+         * @param collection collection name
+         * @param id document ID
+         * @param doc document fields after the update
+         * @param changedFields fields that were set; null values mean cleared
+         */
+        void onChanged(String collection, String id, Map<String, Object> doc,
+                Map<String, Object> changedFields);
+        /**
+         * Called after a document was removed
+         * @param collection collection name
+         * @param id document ID
+         */
+        void onRemoved(String collection, String id);
+    }
+
+    /** collection name to documents by ID */
+    private final Map<String, Map<String, Map<String, Object>>> mCollections;
+    /** location index for the parties collection */
+    private final PartyGridIndex mPartyIndex;
+    private ChangeListener mListener;
+
+    /**
+     * Constructor
+     */
+    public DocumentStore() {
+        mCollections = new HashMap<String, Map<String, Map<String, Object>>>();
+        mPartyIndex = new PartyGridIndex();
+    }
+
+    /**
+     * Sets listener that gets told about writes
+     * @param listener change listener
+     */
+    public void setChangeListener(ChangeListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Gets a document
+     * @param collection collection name
+     * @param id document ID
+     * @return document fields or null if not found
+     */
+    public Map<String, Object> get(String collection, String id) {
+        return getCollection(collection).get(id);
+    }
+
+    /**
+     * Gets all documents in a collection
+     * @param collection collection name
+     * @return documents by ID; don't modify this
+     */
+    public Map<String, Map<String, Object>> getCollection(String collection) {
+        Map<String, Map<String, Object>> docs = mCollections.get(collection);
+        if (docs == null) {
+            docs = new LinkedHashMap<String, Map<String, Object>>();
+            mCollections.put(collection, docs);
+        }
+        return docs;
+    }
+
+    /**
+     * Gets number of documents in a collection
+     * @param collection collection name
+     * @return document count
+     */
+    public int size(String collection) {
+        return getCollection(collection).size();
+    }
+
+    /**
+     * Finds parties inside a bounding box.  If west is greater than east,
+     * the box crosses the 180th meridian.
+     * @param south southern latitude
+     * @param west western longitude
+     * @param north northern latitude
+     * @param east eastern longitude
+     * @return IDs of parties in the box
+     */
+    public Collection<String> queryParties(double south, double west,
+            double north, double east) {
+        return mPartyIndex.query(south, west, north, east);
+    }
+
+    /**
+     * Inserts a document
+     * @param collection collection name
+     * @param id document ID
+     * @param doc document fields; the store keeps this map
+     */
+    public void insert(String collection, String id, Map<String, Object> doc) {
+        getCollection(collection).put(id, doc);
+        indexParty(collection, id, doc);
+        if (mListener != null) {
+            mListener.onAdded(collection, id, doc);
+        }
+    }
+
+    /**
+     * Sets fields on a document like Mongo's $set/$unset
+     * @param collection collection name
+     * @param id document ID
+     * @param fields fields to set; null values clear the field
+     * @return false if the document doesn't exist
+     */
+    public boolean update(String collection, String id, Map<String, Object> fields) {
+        Map<String, Object> doc = get(collection, id);
+        if (doc == null) {
+            return false;
+        }
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            if (field.getValue() == null) {
+                doc.remove(field.getKey());
+            } else {
+                doc.put(field.getKey(), field.getValue());
+            }
+        }
+        if (fields.containsKey("lat") || fields.containsKey("lon")) {
+            indexParty(collection, id, doc);
+        }
+        if (mListener != null) {
+            mListener.onChanged(collection, id, doc, fields);
+        }
+        return true;
+    }
+
+    /**
+     * Removes a document
+     * @param collection collection name
+     * @param id document ID
+     * @return false if the document doesn't exist
+     */
+    public boolean remove(String collection, String id) {
+        if (getCollection(collection).remove(id) == null) {
+            return false;
+        }
+        if (PARTIES.equals(collection)) {
+            mPartyIndex.remove(id);
+        }
+        if (mListener != null) {
+            mListener.onRemoved(collection, id);
+        }
+        return true;
+    }
+
+    /**
+     * Keeps the location index up to date for parties
+     */
+    private void indexParty(String collection, String id, Map<String, Object> doc) {
+        if (!PARTIES.equals(collection)) {
+            return;
+        }
+        Object lat = doc.get("lat");
+        Object lon = doc.get("lon");
+        if ((lat instanceof Number) && (lon instanceof Number)) {
+            mPartyIndex.put(id, ((Number) lat).doubleValue(), ((Number) lon).doubleValue());
+        } else {
+            mPartyIndex.remove(id);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties.ddpserver;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Seeds synthetic users and parties and then keeps changing them at a
+ * fixed rate so clients see a steady stream of added/changed/removed
+ * messages like a busy deployment would send
+ * @author kenyee
+ */
+public class LoadGenerator {
+    /** password every seeded user gets */
+    public static final String PASSWORD = "password";
+
+    /** number of cities parties are spread around */
+    private static final int CITY_COUNT = 200;
+    /** spread of parties around their city in degrees */
+    private static final double CITY_SPREAD = 0.1;
+    /** how far a party moves in one change in degrees */
+    private static final double MOVE_SPREAD = 0.001;
+    private static final String[] RSVP_VALUES = {
+        PartiesModel.RSVP_YES, PartiesModel.RSVP_NO, PartiesModel.RSVP_MAYBE
+    };
+    /** how often changes are applied */
+    private static final long TICK_MS = 10;
+
+    private final PartiesModel mModel;
+    private final Random mRandom;
+    private final double[][] mCities;
+    /** IDs of parties the generator can change */
+    private final ArrayList<String> mPartyIds;
+    private int mUserCount;
+    private int mPartyCount;
+    /** fraction of changes that move a party */
+    private double mMoveFraction;
+    /** fraction of changes that add or remove a party */
+    private double mChurnFraction;
+    /** total number of changes applied */
+    private final AtomicLong mChangeCount;
+
+    /**
+     * Constructor
+     * @param model Meteor Parties data to write to
+     * @param seed random seed so runs are repeatable
+     */
+    public LoadGenerator(PartiesModel model, long seed) {
+        mModel = model;
+        mRandom = new Random(seed);
+        mCities = new double[CITY_COUNT][];
+        for (int i = 0; i < CITY_COUNT; i++) {
+            mCities[i] = new double[] {
+                mRandom.nextDouble() * 120.0 - 60.0, mRandom.nextDouble() * 360.0 - 180.0
+            };
+        }
+        mPartyIds = new ArrayList<String>();
+        mChangeCount = new AtomicLong();
+    }
+
+    /**
+     * Gets Meteor-style ID for a synthetic user
+     * @param index user number
+     * @return user ID
+     */
+    public static String userId(int index) {
+        return "user" + index;
+    }
+
+    /**
+     * Gets email a synthetic user logs in with
+     * @param index user number
+     * @return email address
+     */
+    public static String userEmail(int index) {
+        return userId(index) + "@example.com";
+    }
+
+    /**
+     * Sets the mix of changes; whatever isn't a move or churn is an RSVP
+     * @param moveFraction fraction of changes that move a party
+     * @param churnFraction fraction of changes that add or remove a party
+     */
+    public void setChangeMix(double moveFraction, double churnFraction) {
+        mMoveFraction = moveFraction;
+        mChurnFraction = churnFraction;
+    }
+
+    /**
+     * Gets number of changes applied so far
+     * @return change count
+     */
+    public long getChangeCount() {
+        return mChangeCount.get();
+    }
+
+    /**
+     * Adds users named user0, user1... with {@link #PASSWORD}
+     * @param count number of users
+     * @throws MethodException if the users were already added
+     */
+    public void seedUsers(int count) throws MethodException {
+        for (int i = 0; i < count; i++) {
+            mModel.addUser(userId(i), null, userEmail(i), PASSWORD);
+        }
+        mUserCount = count;
+    }
+
+    /**
+     * Adds parties clustered around cities, each with RSVPs from
+     * consecutive seeded users
+     * @param count number of parties
+     * @param rsvpsPerParty RSVPs per party; capped at the number of users
+     */
+    public void seedParties(int count, int rsvpsPerParty) {
+        int rsvpCount = Math.min(rsvpsPerParty, mUserCount);
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> party = newParty();
+            List<Object> rsvps = new ArrayList<Object>(rsvpCount);
+            int firstUser = mRandom.nextInt(Math.max(1, mUserCount));
+            for (int j = 0; j < rsvpCount; j++) {
+                Map<String, Object> rsvp = new LinkedHashMap<String, Object>();
+                rsvp.put("user", userId((firstUser + j) % mUserCount));
+                rsvp.put("rsvp", RSVP_VALUES[mRandom.nextInt(RSVP_VALUES.length)]);
+                rsvps.add(rsvp);
+            }
+            party.put("rsvps", rsvps);
+            mPartyIds.add(mModel.addParty(null, party));
+        }
+    }
+
+    /**
+     * Applies a batch of random changes
+     * @param count number of changes
+     */
+    public void applyChanges(int count) {
+        for (int i = 0; i < count; i++) {
+            double kind = mRandom.nextDouble();
+            if (kind < mChurnFraction) {
+                churn();
+            } else if (kind < mChurnFraction + mMoveFraction) {
+                move();
+            } else {
+                changeRsvp();
+            }
+        }
+        mChangeCount.addAndGet(count);
+    }
+
+    /**
+     * Starts applying changes at a steady rate.  Changes run on the
+     * server's dispatcher; if it falls behind, up to a second of missed
+     * changes is made up rather than letting work pile up in its queue.
+     * @param server server whose dispatcher applies the changes
+     * @param scheduler scheduler to drive the ticks
+     * @param changesPerSecond change rate
+     */
+    public void start(final DdpServer server, ScheduledExecutorService scheduler,
+            final double changesPerSecond) {
+        final AtomicBoolean isApplying = new AtomicBoolean();
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            private long mLastTick = System.nanoTime();
+            private double mOwed;
+
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                mOwed = Math.min(changesPerSecond,
+                        mOwed + changesPerSecond * (now - mLastTick) / 1e9);
+                mLastTick = now;
+                final int count = (int) mOwed;
+                if ((count == 0) || !isApplying.compareAndSet(false, true)) {
+                    return;
+                }
+                mOwed -= count;
+                server.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            applyChanges(count);
+                        } finally {
+                            isApplying.set(false);
+                        }
+                    }
+                });
+            }
+        }, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds a new party or removes a random one, evenly, so the
+     * collection stays around the same size
+     */
+    private void churn() {
+        if (mRandom.nextBoolean() || mPartyIds.isEmpty()) {
+            mPartyIds.add(mModel.addParty(null, newParty()));
+        } else {
+            int index = mRandom.nextInt(mPartyIds.size());
+            // swap the last ID into its slot so removal is O(1)
+            String partyId = mPartyIds.get(index);
+            mPartyIds.set(index, mPartyIds.get(mPartyIds.size() - 1));
+            mPartyIds.remove(mPartyIds.size() - 1);
+            mModel.getStore().remove(DocumentStore.PARTIES, partyId);
+        }
+    }
+
+    private void move() {
+        String partyId = randomPartyId();
+        if (partyId == null) {
+            return;
+        }
+        Map<String, Object> party = mModel.getStore().get(DocumentStore.PARTIES, partyId);
+        if (party == null) {
+            return;
+        }
+        double lat = ((Number) party.get("lat")).doubleValue() + mRandom.nextGaussian() * MOVE_SPREAD;
+        double lon = ((Number) party.get("lon")).doubleValue() + mRandom.nextGaussian() * MOVE_SPREAD;
+        Map<String, Object> fields = new LinkedHashMap<String, Object>();
+        fields.put("lat", Math.max(-90.0, Math.min(90.0, lat)));
+        fields.put("lon", Math.max(-180.0, Math.min(180.0, lon)));
+        mModel.getStore().update(DocumentStore.PARTIES, partyId, fields);
+    }
+
+    private void changeRsvp() {
+        String partyId = randomPartyId();
+        if ((partyId == null) || (mUserCount == 0)) {
+            return;
+        }
+        mModel.setRsvp(partyId, userId(mRandom.nextInt(mUserCount)),
+                RSVP_VALUES[mRandom.nextInt(RSVP_VALUES.length)]);
+    }
+
+    private String randomPartyId() {
+        if (mPartyIds.isEmpty()) {
+            return null;
+        }
+        return mPartyIds.get(mRandom.nextInt(mPartyIds.size()));
+    }
+
+    /**
+     * Makes a party near a random city; every fourth one is private
+     */
+    private Map<String, Object> newParty() {
+        int index = mPartyCount++;
+        double[] city = mCities[mRandom.nextInt(CITY_COUNT)];
+        Map<String, Object> party = new LinkedHashMap<String, Object>();
+        party.put("owner", userId(index % Math.max(1, mUserCount)));
+        party.put("lat", Math.max(-90.0, Math.min(90.0,
+                city[0] + mRandom.nextGaussian() * CITY_SPREAD)));
+        party.put("lon", Math.max(-180.0, Math.min(180.0,
+                city[1] + mRandom.nextGaussian() * CITY_SPREAD)));
+        party.put("title", "Party " + index);
+        party.put("description", "Synthetic party number " + index);
+        party.put("public", (index % 4) != 0);
+        return party;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties.ddpserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Error thrown by a method implementation; sent back to the client the
+ * way Meteor.Error is so the app sees the same error messages
+ * @author kenyee
+ */
+public class MethodException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    /** HTTP-style error code Meteor uses, e.g. 403 */
+    private final int mError;
+    /** human readable reason */
+    private final String mReason;
+
+    /**
+     * Constructor
+     * @param error HTTP-style error code
+     * @param reason human readable reason
+     */
+    public MethodException(int error, String reason) {
+        super(reason + " [" + error + "]");
+        mError = error;
+        mReason = reason;
+    }
+
+    /**
+     * Gets error code
+     * @return HTTP-style error code
+     */
+    public int getError() {
+        return mError;
+    }
+
+    /**
+     * Gets reason for error
+     * @return human readable reason
+     */
+    public String getReason() {
+        return mReason;
+    }
+
+    /**
+     * Converts to the error object of a DDP result message
+     * @return EJSON-ready error fields
+     */
+    public Map<String, Object> toFields() {
+        Map<String, Object> fields = new LinkedHashMap<String, Object>();
+        fields.put("error", mError);
+        fields.put("reason", mReason);
+        fields.put("message", getMessage());
+        fields.put("errorType", "Meteor.Error");
+        return fields;
+    }
+}
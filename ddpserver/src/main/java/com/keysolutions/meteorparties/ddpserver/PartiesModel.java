@@ -0,0 +1,463 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties.ddpserver;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Server side of the Meteor Parties sample: the accounts methods, the
+ * party methods from its model.js and the rules for which parties a
+ * user can see.
+ * <p>
+ * Like {@link DocumentStore}, this is only used from the dispatcher thread.
+ * @author kenyee
+ */
+public class PartiesModel {
+    public static final String RSVP_YES = "yes";
+    public static final String RSVP_NO = "no";
+    public static final String RSVP_MAYBE = "maybe";
+
+    /** characters Meteor's Random.id() uses */
+    private static final String ID_CHARS =
+            "23456789ABCDEFGHJKLMNPQRSTWXYZabcdefghijkmnopqrstuvwxyz";
+    private static final int ID_LENGTH = 17;
+    private static final int TOKEN_LENGTH = 43;
+    /** how long login tokens are good for (Meteor's default is 90 days) */
+    private static final long TOKEN_LIFETIME_MS = 90L * 24 * 60 * 60 * 1000;
+    private static final int MAX_TITLE_LENGTH = 100;
+    private static final int MAX_DESCRIPTION_LENGTH = 1000;
+
+    /**
+     * Login credentials for a user
+     */
+    private static class Account {
+        String userId;
+        /** hex SHA-256 of the password like accounts-password's digest */
+        String passwordDigest;
+    }
+
+    private final DocumentStore mStore;
+    private final Random mRandom;
+    /** lower-cased email to account */
+    private final Map<String, Account> mAccountsByEmail;
+    /** username to account */
+    private final Map<String, Account> mAccountsByUsername;
+    /** login token to user ID */
+    private final Map<String, String> mTokens;
+
+    /**
+     * Constructor
+     * @param store documents to work on
+     * @param random source of IDs and tokens
+     */
+    public PartiesModel(DocumentStore store, Random random) {
+        mStore = store;
+        mRandom = random;
+        mAccountsByEmail = new HashMap<String, Account>();
+        mAccountsByUsername = new HashMap<String, Account>();
+        mTokens = new HashMap<String, String>();
+    }
+
+    /**
+     * Gets the documents this model works on
+     * @return document store
+     */
+    public DocumentStore getStore() {
+        return mStore;
+    }
+
+    /**
+     * Generates a Meteor-style document ID
+     * @return random ID
+     */
+    public String newId() {
+        return randomString(ID_LENGTH);
+    }
+
+    /**
+     * Whether a user can see a party; this is the parties publication's
+     * query: public parties plus ones the user owns or was invited to
+     * @param party party document
+     * @param userId logged in user or null
+     * @return true if visible
+     */
+    public static boolean canSee(Map<String, Object> party, String userId) {
+        if (Boolean.TRUE.equals(party.get("public"))) {
+            return true;
+        }
+        if (userId == null) {
+            return false;
+        }
+        if (userId.equals(party.get("owner"))) {
+            return true;
+        }
+        Object invited = party.get("invited");
+        return (invited instanceof List) && ((List<?>) invited).contains(userId);
+    }
+
+    /**
+     * Adds a user account and its users document
+     * @param userId user ID or null to generate one
+     * @param username username or null
+     * @param email email address or null
+     * @param password plain text password
+     * @return user ID
+     * @throws MethodException if username or email is taken
+     */
+    public String addUser(String userId, String username, String email, String password)
+            throws MethodException {
+        return addUserWithDigest(userId, username, email, sha256(password));
+    }
+
+    /**
+     * Adds a party document
+     * @param partyId party ID or null to generate one
+     * @param party party fields
+     * @return party ID
+     */
+    public String addParty(String partyId, Map<String, Object> party) {
+        if (partyId == null) {
+            partyId = newId();
+        }
+        if (!party.containsKey("invited")) {
+            party.put("invited", new ArrayList<Object>());
+        }
+        if (!party.containsKey("rsvps")) {
+            party.put("rsvps", new ArrayList<Object>());
+        }
+        mStore.insert(DocumentStore.PARTIES, partyId, party);
+        return partyId;
+    }
+
+    /**
+     * Sets a user's RSVP on a party, replacing any RSVP they already had
+     * @param partyId party ID
+     * @param userId user ID
+     * @param rsvp yes/no/maybe
+     * @return false if the party doesn't exist
+     */
+    public boolean setRsvp(String partyId, String userId, String rsvp) {
+        Map<String, Object> party = mStore.get(DocumentStore.PARTIES, partyId);
+        if (party == null) {
+            return false;
+        }
+        // copy so what was already sent to clients isn't changed underneath them
+        List<Object> rsvps = new ArrayList<Object>(asList(party.get("rsvps")));
+        Map<String, Object> entry = new LinkedHashMap<String, Object>();
+        entry.put("user", userId);
+        entry.put("rsvp", rsvp);
+        boolean isReplaced = false;
+        for (int i = 0; i < rsvps.size(); i++) {
+            Object old = rsvps.get(i);
+            if ((old instanceof Map) && userId.equals(((Map<?, ?>) old).get("user"))) {
+                rsvps.set(i, entry);
+                isReplaced = true;
+                break;
+            }
+        }
+        if (!isReplaced) {
+            rsvps.add(entry);
+        }
+        Map<String, Object> fields = new HashMap<String, Object>();
+        fields.put("rsvps", rsvps);
+        return mStore.update(DocumentStore.PARTIES, partyId, fields);
+    }
+
+    /**
+     * Runs a Meteor method
+     * @param session client calling the method
+     * @param method method name
+     * @param params method arguments
+     * @return method result, which may be null
+     * @throws MethodException if the method failed or doesn't exist
+     */
+    public Object call(DdpSession session, String method, List<Object> params)
+            throws MethodException {
+        if ("login".equals(method)) {
+            return login(session, asMap(param(params, 0)));
+        } else if ("createUser".equals(method)) {
+            return createUser(session, asMap(param(params, 0)));
+        } else if ("logout".equals(method)) {
+            session.setUserId(null);
+            return null;
+        } else if ("createParty".equals(method)) {
+            return createParty(session.getUserId(), asMap(param(params, 0)));
+        } else if ("invite".equals(method)) {
+            invite(session.getUserId(), asString(param(params, 0)), asString(param(params, 1)));
+            return null;
+        } else if ("rsvp".equals(method)) {
+            rsvp(session.getUserId(), asString(param(params, 0)), asString(param(params, 1)));
+            return null;
+        }
+        throw new MethodException(404, "Method '" + method + "' not found");
+    }
+
+    /**
+     * Logs in with a resume token or a username/email and password
+     */
+    private Object login(DdpSession session, Map<String, Object> options)
+            throws MethodException {
+        String userId;
+        if (options.containsKey("resume")) {
+            userId = mTokens.get(asString(options.get("resume")));
+            if (userId == null) {
+                throw new MethodException(403, "You've been logged out by the server. Please log in again.");
+            }
+        } else {
+            Map<String, Object> user = asMap(options.get("user"));
+            Account account = null;
+            if (user.get("email") != null) {
+                account = mAccountsByEmail.get(asString(user.get("email")).toLowerCase());
+            } else if (user.get("username") != null) {
+                account = mAccountsByUsername.get(asString(user.get("username")));
+            }
+            if (account == null) {
+                throw new MethodException(403, "User not found");
+            }
+            if (!account.passwordDigest.equals(passwordDigest(options.get("password")))) {
+                throw new MethodException(403, "Incorrect password");
+            }
+            userId = account.userId;
+        }
+        return loggedIn(session, userId);
+    }
+
+    /**
+     * Registers a new account and logs into it
+     */
+    private Object createUser(DdpSession session, Map<String, Object> options)
+            throws MethodException {
+        String username = (String) options.get("username");
+        String email = (String) options.get("email");
+        if ((username == null) && (email == null)) {
+            throw new MethodException(400, "Need to set a username or email");
+        }
+        String userId = addUserWithDigest(null, username, email,
+                passwordDigest(options.get("password")));
+        return loggedIn(session, userId);
+    }
+
+    /**
+     * Issues a login token and switches the session to the user
+     */
+    private Object loggedIn(DdpSession session, String userId) {
+        String token = randomString(TOKEN_LENGTH);
+        mTokens.put(token, userId);
+        session.setUserId(userId);
+        Map<String, Object> expires = new LinkedHashMap<String, Object>();
+        expires.put("$date", System.currentTimeMillis() + TOKEN_LIFETIME_MS);
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("id", userId);
+        result.put("token", token);
+        result.put("tokenExpires", expires);
+        return result;
+    }
+
+    private String addUserWithDigest(String userId, String username, String email,
+            String passwordDigest) throws MethodException {
+        if ((username != null) && mAccountsByUsername.containsKey(username)) {
+            throw new MethodException(403, "Username already exists.");
+        }
+        if ((email != null) && mAccountsByEmail.containsKey(email.toLowerCase())) {
+            throw new MethodException(403, "Email already exists.");
+        }
+        if (userId == null) {
+            userId = newId();
+        }
+        Account account = new Account();
+        account.userId = userId;
+        account.passwordDigest = passwordDigest;
+        Map<String, Object> user = new LinkedHashMap<String, Object>();
+        if (username != null) {
+            mAccountsByUsername.put(username, account);
+            user.put("username", username);
+        }
+        List<Object> emails = new ArrayList<Object>();
+        if (email != null) {
+            mAccountsByEmail.put(email.toLowerCase(), account);
+            Map<String, Object> address = new LinkedHashMap<String, Object>();
+            address.put("address", email);
+            address.put("verified", false);
+            emails.add(address);
+        }
+        user.put("emails", emails);
+        user.put("profile", new LinkedHashMap<String, Object>());
+        mStore.insert(DocumentStore.USERS, userId, user);
+        return userId;
+    }
+
+    /**
+     * model.js createParty; the client can pick the party's ID with the
+     * optional _id option, so a replayed call returns the party the first
+     * call created instead of making another one
+     */
+    private String createParty(String userId, Map<String, Object> options)
+            throws MethodException {
+        if (userId == null) {
+            throw new MethodException(403, "You must be logged in");
+        }
+        Object partyId = options.get("_id");
+        if ((partyId != null) && (!(partyId instanceof String) || ((String) partyId).isEmpty())) {
+            throw new MethodException(400, "Match failed");
+        }
+        if (partyId != null) {
+            Map<String, Object> existing = mStore.get(DocumentStore.PARTIES, (String) partyId);
+            if (existing != null) {
+                if (userId.equals(existing.get("owner"))) {
+                    return (String) partyId;
+                }
+                // what Mongo's duplicate key error looks like to the client
+                throw new MethodException(500, "Internal server error");
+            }
+        }
+        Object title = options.get("title");
+        Object description = options.get("description");
+        if (!(title instanceof String) || !(description instanceof String)
+                || !(options.get("lat") instanceof Number)
+                || !(options.get("lon") instanceof Number)) {
+            throw new MethodException(400, "Match failed");
+        }
+        if (((String) title).length() > MAX_TITLE_LENGTH) {
+            throw new MethodException(413, "Title too long");
+        }
+        if (((String) description).length() > MAX_DESCRIPTION_LENGTH) {
+            throw new MethodException(413, "Description too long");
+        }
+        Map<String, Object> party = new LinkedHashMap<String, Object>();
+        party.put("owner", userId);
+        party.put("lat", ((Number) options.get("lat")).doubleValue());
+        party.put("lon", ((Number) options.get("lon")).doubleValue());
+        party.put("title", title);
+        party.put("description", description);
+        party.put("public", Boolean.TRUE.equals(options.get("public")));
+        return addParty((String) partyId, party);
+    }
+
+    /**
+     * model.js invite: only the owner can invite to a private party
+     */
+    private void invite(String userId, String partyId, String inviteeId)
+            throws MethodException {
+        Map<String, Object> party = mStore.get(DocumentStore.PARTIES, partyId);
+        if ((party == null) || (userId == null) || !userId.equals(party.get("owner"))) {
+            throw new MethodException(404, "No such party");
+        }
+        if (Boolean.TRUE.equals(party.get("public"))) {
+            throw new MethodException(400, "That party is public. No need to invite people.");
+        }
+        List<Object> invited = asList(party.get("invited"));
+        if (inviteeId.equals(userId) || invited.contains(inviteeId)) {
+            return;
+        }
+        invited = new ArrayList<Object>(invited);
+        invited.add(inviteeId);
+        Map<String, Object> fields = new HashMap<String, Object>();
+        fields.put("invited", invited);
+        mStore.update(DocumentStore.PARTIES, partyId, fields);
+    }
+
+    /**
+     * model.js rsvp
+     */
+    private void rsvp(String userId, String partyId, String rsvp) throws MethodException {
+        if (userId == null) {
+            throw new MethodException(403, "You must be logged in to RSVP");
+        }
+        if (!RSVP_YES.equals(rsvp) && !RSVP_NO.equals(rsvp) && !RSVP_MAYBE.equals(rsvp)) {
+            throw new MethodException(400, "Invalid RSVP");
+        }
+        Map<String, Object> party = mStore.get(DocumentStore.PARTIES, partyId);
+        if ((party == null) || !canSee(party, userId)) {
+            throw new MethodException(404, "No such party");
+        }
+        setRsvp(partyId, userId, rsvp);
+    }
+
+    /**
+     * Gets the password digest from either a plain text password or the
+     * {digest, algorithm} object newer clients send
+     */
+    private static String passwordDigest(Object password) throws MethodException {
+        if (password instanceof String) {
+            return sha256((String) password);
+        }
+        Map<String, Object> hashed = asMap(password);
+        if (!"sha-256".equals(hashed.get("algorithm")) || !(hashed.get("digest") instanceof String)) {
+            throw new MethodException(400, "Invalid password");
+        }
+        return ((String) hashed.get("digest")).toLowerCase();
+    }
+
+    private static String sha256(String text) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(
+                    text.getBytes(Charset.forName("UTF-8")));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String randomString(int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = ID_CHARS.charAt(mRandom.nextInt(ID_CHARS.length()));
+        }
+        return new String(chars);
+    }
+
+    private static Object param(List<Object> params, int index) {
+        return ((params != null) && (index < params.size())) ? params.get(index) : null;
+    }
+
+    private static String asString(Object value) throws MethodException {
+        if (!(value instanceof String)) {
+            throw new MethodException(400, "Match failed");
+        }
+        return (String) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asMap(Object value) throws MethodException {
+        if (!(value instanceof Map)) {
+            throw new MethodException(400, "Match failed");
+        }
+        return (Map<String, Object>) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> asList(Object value) {
+        if (value instanceof List) {
+            return (List<Object>) value;
+        }
+        return new ArrayList<Object>();
+    }
+}
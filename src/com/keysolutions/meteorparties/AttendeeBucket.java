@@ -0,0 +1,45 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties;
+
+/**
+ * Maps a party's #attendees to a marker bucket (one per 10 attendees)
+ * @author kenyee
+ */
+public final class AttendeeBucket {
+    /** number of marker buckets */
+    public static final int BUCKET_COUNT = 10;
+    /** #attendees covered by each bucket */
+    public static final int BUCKET_SIZE = 10;
+
+    private AttendeeBucket() {
+    }
+
+    /**
+     * Gets the marker bucket for a number of attendees.  Every count maps
+     * to a bucket; anything past the last bucket goes in the last one.
+     * @param attendees #attendees (people who rsvp'd yes)
+     * @return bucket from 0 to BUCKET_COUNT - 1
+     */
+    public static int forAttendees(int attendees) {
+        if (attendees <= 0) {
+            return 0;
+        }
+        int bucket = attendees / BUCKET_SIZE;
+        return (bucket < BUCKET_COUNT) ? bucket : (BUCKET_COUNT - 1);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Outbound method call queue that allows at most one call in flight per
+ * key (e.g. per party) and collapses calls queued behind it so only the
+ * latest value is sent next.
+ * <p>
+ * This has no Android dependencies; all methods are synchronized.
+ * @author kenyee
+ */
+public class CoalescingCallQueue<V> {
+    /**
+     * Told about values that will never be sent because a newer value
+     * replaced them or they were discarded
+     */
+    public interface OnDiscardListener<V> {
+        /**
+         * Called (while the queue is locked) when a waiting value is dropped
+         * @param key what the call was for
+         * @param value value that won't be sent
+         */
+        void onDiscarded(String key, V value);
+    }
+
+    /**
+     * Key to latest value waiting to be sent; a key with a null value has
+     * a call in flight and nothing waiting
+     */
+    private final Map<String, V> mWaiting;
+    private OnDiscardListener<V> mOnDiscardListener;
+
+    /**
+     * Constructor
+     */
+    public CoalescingCallQueue() {
+        mWaiting = new HashMap<String, V>();
+    }
+
+    /**
+     * Sets listener for values that are dropped without being sent
+     * @param listener discard listener or null
+     */
+    public synchronized void setOnDiscardListener(OnDiscardListener<V> listener) {
+        mOnDiscardListener = listener;
+    }
+
+    /**
+     * Queues a call
+     * @param key what the call is for (e.g. party ID)
+     * @param value call's value
+     * @return true if nothing is in flight for key so the caller should
+     *         send the call now; false if it was queued (replacing any
+     *         value already waiting)
+     */
+    public synchronized boolean offer(String key, V value) {
+        if (!mWaiting.containsKey(key)) {
+            mWaiting.put(key, null);
+            return true;
+        }
+        discarded(key, mWaiting.put(key, value));
+        return false;
+    }
+
+    /**
+     * Called when the call in flight for a key finishes
+     * @param key what the call was for
+     * @return latest value that was queued, which the caller should send
+     *         now, or null if nothing is waiting
+     */
+    public synchronized V complete(String key) {
+        V next = mWaiting.get(key);
+        if (next == null) {
+            mWaiting.remove(key);
+        } else {
+            // next call is in flight now
+            mWaiting.put(key, null);
+        }
+        return next;
+    }
+
+    /**
+     * Drops any value waiting behind the call in flight for a key
+     * @param key what the call is for
+     */
+    public synchronized void discardWaiting(String key) {
+        if (mWaiting.containsKey(key)) {
+            discarded(key, mWaiting.put(key, null));
+        }
+    }
+
+    /**
+     * Whether a call is in flight for a key
+     * @param key what the call is for
+     * @return true if a call is in flight
+     */
+    public synchronized boolean isBusy(String key) {
+        return mWaiting.containsKey(key);
+    }
+
+    /**
+     * Forgets all calls, e.g. when the connection is lost
+     */
+    public synchronized void clear() {
+        for (Map.Entry<String, V> waiting : mWaiting.entrySet()) {
+            discarded(waiting.getKey(), waiting.getValue());
+        }
+        mWaiting.clear();
+    }
+
+    private void discarded(String key, V value) {
+        if ((value != null) && (mOnDiscardListener != null)) {
+            mOnDiscardListener.onDiscarded(key, value);
+        }
+    }
+}
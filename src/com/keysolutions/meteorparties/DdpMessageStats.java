@@ -0,0 +1,244 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts DDP subscription messages per collection and change type: how
+ * many arrived, roughly how many bytes they carried and how long we
+ * spent wrapping and queueing them.  Batched broadcasts to the UI are
+ * timed per collection only, since a batch's coalesced change types
+ * don't match the messages that made them.
+ * <p>
+ * This has no Android dependencies; all methods are synchronized.
+ * @author kenyee
+ */
+public class DdpMessageStats {
+    /** "collection/changetype" to its counter */
+    private final Map<String, Counter> mCounters;
+    /** collection to time spent broadcasting its batched changes */
+    private final Map<String, Long> mFlushNanos;
+    /** when counting started (System.nanoTime) */
+    private long mStartNanos;
+
+    /**
+     * Counts for one collection and change type
+     */
+    public static class Counter {
+        private final String mCollection;
+        private final String mChangeType;
+        private long mMessages;
+        private long mBytes;
+        private long mWrapNanos;
+        private long mBroadcastNanos;
+
+        Counter(String collection, String changeType) {
+            mCollection = collection;
+            mChangeType = changeType;
+        }
+
+        Counter(Counter other) {
+            this(other.mCollection, other.mChangeType);
+            mMessages = other.mMessages;
+            mBytes = other.mBytes;
+            mWrapNanos = other.mWrapNanos;
+            mBroadcastNanos = other.mBroadcastNanos;
+        }
+
+        /**
+         * Gets name of collection
+         * @return collection name
+         */
+        public String getCollection() {
+            return mCollection;
+        }
+
+        /**
+         * Gets DDP change type
+         * @return added, changed or removed
+         */
+        public String getChangeType() {
+            return mChangeType;
+        }
+
+        /**
+         * Gets number of messages
+         * @return message count
+         */
+        public long getMessages() {
+            return mMessages;
+        }
+
+        /**
+         * Gets estimated JSON size of the documents the messages changed
+         * (the DDP library only hands us the merged document, not the
+         * raw message)
+         * @return estimated bytes
+         */
+        public long getBytes() {
+            return mBytes;
+        }
+
+        /**
+         * Gets time spent updating our wrappers/indexes for the messages
+         * @return time in nanoseconds
+         */
+        public long getWrapNanos() {
+            return mWrapNanos;
+        }
+
+        /**
+         * Gets time spent queueing the messages to be broadcast
+         * @return time in nanoseconds
+         */
+        public long getBroadcastNanos() {
+            return mBroadcastNanos;
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    public DdpMessageStats() {
+        mCounters = new LinkedHashMap<String, Counter>();
+        mFlushNanos = new LinkedHashMap<String, Long>();
+        mStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Records a subscription message
+     * @param collection name of collection
+     * @param changeType DDP change type
+     * @param bytes estimated size of changed document
+     * @param wrapNanos time spent updating wrappers/indexes
+     */
+    public synchronized void recordMessage(String collection, String changeType,
+            long bytes, long wrapNanos) {
+        Counter counter = getCounter(collection, changeType);
+        counter.mMessages++;
+        counter.mBytes += bytes;
+        counter.mWrapNanos += wrapNanos;
+    }
+
+    /**
+     * Records time spent queueing a subscription message to be broadcast
+     * @param collection name of collection
+     * @param changeType DDP change type
+     * @param nanos time spent
+     */
+    public synchronized void recordBroadcast(String collection, String changeType,
+            long nanos) {
+        getCounter(collection, changeType).mBroadcastNanos += nanos;
+    }
+
+    /**
+     * Records time spent broadcasting batched changes to the UI
+     * @param collection name of collection
+     * @param nanos time spent
+     */
+    public synchronized void recordFlush(String collection, long nanos) {
+        Long total = mFlushNanos.get(collection);
+        mFlushNanos.put(collection, (total != null) ? total + nanos : nanos);
+    }
+
+    /**
+     * Gets a copy of the broadcast times
+     * @return collection to time spent broadcasting in nanoseconds
+     */
+    public synchronized Map<String, Long> getFlushNanos() {
+        return new LinkedHashMap<String, Long>(mFlushNanos);
+    }
+
+    /**
+     * Gets a copy of the counters
+     * @return counters in the order their collection/change type first appeared
+     */
+    public synchronized List<Counter> snapshot() {
+        List<Counter> counters = new ArrayList<Counter>(mCounters.size());
+        for (Counter counter : mCounters.values()) {
+            counters.add(new Counter(counter));
+        }
+        return counters;
+    }
+
+    /**
+     * Gets how long we've been counting
+     * @return elapsed time in milliseconds
+     */
+    public synchronized long getElapsedMs() {
+        return (System.nanoTime() - mStartNanos) / 1000000;
+    }
+
+    /**
+     * Clears all counters
+     */
+    public synchronized void reset() {
+        mCounters.clear();
+        mFlushNanos.clear();
+        mStartNanos = System.nanoTime();
+    }
+
+    private Counter getCounter(String collection, String changeType) {
+        String key = collection + "/" + changeType;
+        Counter counter = mCounters.get(key);
+        if (counter == null) {
+            counter = new Counter(collection, changeType);
+            mCounters.put(key, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * Estimates the JSON size of a document without serializing it
+     * @param value document fields or any value in them
+     * @return estimated bytes
+     */
+    public static long estimateSize(Object value) {
+        if (value == null) {
+            return 4;
+        }
+        if (value instanceof String) {
+            return ((String) value).length() + 2;
+        }
+        if (value instanceof Number) {
+            return 8;
+        }
+        if (value instanceof Boolean) {
+            return 5;
+        }
+        if (value instanceof Map) {
+            long size = 2;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += String.valueOf(entry.getKey()).length() + 4
+                        + estimateSize(entry.getValue());
+            }
+            return size;
+        }
+        if (value instanceof List) {
+            long size = 2;
+            for (Object item : (List<?>) value) {
+                size += estimateSize(item) + 1;
+            }
+            return size;
+        }
+        return String.valueOf(value).length();
+    }
+}
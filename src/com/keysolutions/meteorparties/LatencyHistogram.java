@@ -0,0 +1,158 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties;
+
+import java.util.Arrays;
+
+/**
+ * HDR-style log-linear latency histogram.  Each power of two range of
+ * values is split into a fixed number of linear sub-buckets, so recorded
+ * values keep about 3% precision from microseconds to hours in a few
+ * kilobytes, and recording is a couple of shifts and an array increment.
+ * <p>
+ * This has no Android dependencies; all methods are synchronized.
+ * @author kenyee
+ */
+public class LatencyHistogram {
+    /** log2 of number of linear sub-buckets per power of two */
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /** number of powers of two covered (values up to 2^40 microseconds, ~12 days) */
+    private static final int BUCKET_COUNT = 40 - SUB_BUCKET_BITS + 1;
+
+    /** counts per sub-bucket */
+    private final long[] mCounts;
+    /** number of values recorded */
+    private long mTotalCount;
+    /** sum of values recorded so we can report the mean */
+    private long mTotal;
+    /** largest value recorded */
+    private long mMax;
+
+    /**
+     * Constructor
+     */
+    public LatencyHistogram() {
+        mCounts = new long[BUCKET_COUNT * SUB_BUCKET_COUNT];
+    }
+
+    /**
+     * Records a latency
+     * @param micros latency in microseconds
+     */
+    public synchronized void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        mCounts[indexOf(micros)]++;
+        mTotalCount++;
+        mTotal += micros;
+        if (micros > mMax) {
+            mMax = micros;
+        }
+    }
+
+    /**
+     * Gets number of latencies recorded
+     * @return count
+     */
+    public synchronized long getCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * Gets largest latency recorded
+     * @return max latency in microseconds
+     */
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    /**
+     * Gets average latency
+     * @return mean latency in microseconds (0 if nothing recorded)
+     */
+    public synchronized long getMean() {
+        return (mTotalCount == 0) ? 0 : (mTotal / mTotalCount);
+    }
+
+    /**
+     * Gets latency at a percentile
+     * @param percentile 0 to 100 (e.g. 99 for p99)
+     * @return upper end of the bucket holding that percentile, in
+     *         microseconds (0 if nothing recorded)
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (mTotalCount == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(mTotalCount * Math.min(percentile, 100.0) / 100.0);
+        if (target < 1) {
+            target = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= target) {
+                return Math.min(highestValueAt(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Clears all recorded latencies
+     */
+    public synchronized void reset() {
+        Arrays.fill(mCounts, 0);
+        mTotalCount = 0;
+        mTotal = 0;
+        mMax = 0;
+    }
+
+    /**
+     * Gets the sub-bucket index for a value
+     */
+    private static int indexOf(long value) {
+        // power of two range above the linear first bucket
+        int bucket = 64 - Long.numberOfLeadingZeros(value >>> SUB_BUCKET_BITS);
+        if (bucket >= BUCKET_COUNT) {
+            return (BUCKET_COUNT * SUB_BUCKET_COUNT) - 1;
+        }
+        int shift = (bucket == 0) ? 0 : (bucket - 1);
+        int subBucket = (int) (value >>> shift);
+        if (bucket > 0) {
+            // top half of the sub-buckets, since the leading bit is set
+            subBucket -= SUB_BUCKET_COUNT;
+        }
+        return (bucket * SUB_BUCKET_COUNT) + subBucket;
+    }
+
+    /**
+     * Gets the largest value that lands in a sub-bucket
+     */
+    private static long highestValueAt(int index) {
+        int bucket = index / SUB_BUCKET_COUNT;
+        int subBucket = index % SUB_BUCKET_COUNT;
+        if (bucket == 0) {
+            return subBucket;
+        }
+        int shift = bucket - 1;
+        long lowest = ((long) (subBucket + SUB_BUCKET_COUNT)) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -21,14 +21,9 @@ import android.animation.AnimatorListenerAdapter;
 import android.annotation.TargetApi;
 import android.app.Activity;
 import android.app.AlertDialog;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.DialogInterface;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Build;
 import android.os.Bundle;
-import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
 import android.view.KeyEvent;
 import android.view.Menu;
@@ -44,8 +39,8 @@ import android.widget.TextView;
  * well.
  */
 public class LoginActivity extends Activity {
-    /** broadcast receiver for DDP events */
-    private BroadcastReceiver mReceiver;
+    /** listener for DDP events */
+    private MyDDPEventListener mDDPListener;
 
     /** bundle key for default email to populate the email key with */
     public static final String EXTRA_EMAIL = "login.extra.EMAIL";
@@ -148,31 +143,24 @@ public class LoginActivity extends Activity {
     protected void onResume() {
         super.onResume();
         // get ready to handle DDP events
-        mReceiver = new BroadcastReceiver() {
+        mDDPListener = new MyDDPEventListener(this) {
             @Override
-            public void onReceive(Context context, Intent intent) {
+            protected void onConnectionState(MyDDPState.DDPSTATE state) {
+                showProgress(false);
+            }
+            @Override
+            protected void onLogin() {
+                // login complete, so we can close this login activity and go back
+                finish();
+            }
+            @Override
+            protected void onError(String title, String msg) {
                 // display errors to the user
-                Bundle bundle = intent.getExtras();
                 showProgress(false);
-                if (intent.getAction().equals(MyDDPState.MESSAGE_ERROR)) {
-                    String message = bundle.getString(MyDDPState.MESSAGE_EXTRA_MSG);
-                    showError("Login Error", message);
-                } else if (intent.getAction().equals(MyDDPState.MESSAGE_CONNECTION)) {
-                    int state = bundle.getInt(MyDDPState.MESSAGE_EXTRA_STATE);
-                    if (state == MyDDPState.DDPSTATE.LoggedIn.ordinal()) {
-                        // login complete, so we can close this login activity and go back
-                        finish();
-                    }
-                }
+                showError(title, msg);
             }
-    
         };
-        // we want error messages
-        LocalBroadcastManager.getInstance(this).registerReceiver(mReceiver,
-                new IntentFilter(MyDDPState.MESSAGE_ERROR));
-        // we want connection state change messages so we know we're logged in
-        LocalBroadcastManager.getInstance(this).registerReceiver(mReceiver,
-                new IntentFilter(MyDDPState.MESSAGE_CONNECTION));
+        MyDDPState.getInstance().addListener(mDDPListener);
         
         // show connection error if it happened
         if (MyDDPState.getInstance().getState() == MyDDPState.DDPSTATE.Closed) {
@@ -205,9 +193,9 @@ public class LoginActivity extends Activity {
     @Override
     protected void onPause() {
         super.onPause();
-        if (mReceiver != null) {
-            LocalBroadcastManager.getInstance(this).unregisterReceiver(mReceiver);
-            mReceiver = null;
+        if (mDDPListener != null) {
+            MyDDPState.getInstance().removeListener(mDDPListener);
+            mDDPListener = null;
         }
     }
 
@@ -0,0 +1,89 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties;
+
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+
+/**
+ * Shared cache of marker icons so each attendee bucket's icon is only
+ * built once and the same descriptor is reused by every marker.
+ * <p>
+ * Icons are built on first use because BitmapDescriptorFactory can't be
+ * used until Google Maps is initialized.  Only used from the UI thread.
+ * @author kenyee
+ */
+public final class MarkerIcons {
+    /** This is a color map used to map the #attendees/10 to a color */
+    private static final float colorMap[] = {
+        BitmapDescriptorFactory.HUE_BLUE,  
+        BitmapDescriptorFactory.HUE_AZURE,  
+        BitmapDescriptorFactory.HUE_CYAN,   
+        BitmapDescriptorFactory.HUE_GREEN,
+        BitmapDescriptorFactory.HUE_YELLOW, 
+        BitmapDescriptorFactory.HUE_ORANGE,
+        BitmapDescriptorFactory.HUE_MAGENTA,     
+        BitmapDescriptorFactory.HUE_ROSE,    
+        BitmapDescriptorFactory.HUE_RED, 
+        BitmapDescriptorFactory.HUE_VIOLET,  
+    };
+    /** marker color for party clusters */
+    private static final float CLUSTER_HUE = BitmapDescriptorFactory.HUE_ROSE;
+
+    /** party icons by attendee bucket */
+    private static final BitmapDescriptor sPartyIcons[] =
+            new BitmapDescriptor[AttendeeBucket.BUCKET_COUNT];
+    /** icon for party clusters */
+    private static BitmapDescriptor sClusterIcon;
+
+    private MarkerIcons() {
+    }
+
+    /**
+     * Gets marker color for an attendee bucket
+     * @param bucket attendee bucket from {@link AttendeeBucket}
+     * @return Google Maps marker color
+     */
+    public static float getHue(int bucket) {
+        return colorMap[bucket];
+    }
+
+    /**
+     * Gets shared party marker icon for an attendee bucket
+     * @param bucket attendee bucket from {@link AttendeeBucket}
+     * @return marker icon
+     */
+    public static BitmapDescriptor getPartyIcon(int bucket) {
+        BitmapDescriptor icon = sPartyIcons[bucket];
+        if (icon == null) {
+            icon = BitmapDescriptorFactory.defaultMarker(colorMap[bucket]);
+            sPartyIcons[bucket] = icon;
+        }
+        return icon;
+    }
+
+    /**
+     * Gets shared party cluster marker icon
+     * @return marker icon
+     */
+    public static BitmapDescriptor getClusterIcon() {
+        if (sClusterIcon == null) {
+            sClusterIcon = BitmapDescriptorFactory.defaultMarker(CLUSTER_HUE);
+        }
+        return sClusterIcon;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+/**
+ * Pool of hidden Google Maps markers so markers that scroll out of view
+ * can be reused instead of doing an expensive remove/addMarker each time
+ * @author kenyee
+ */
+public class MarkerPool {
+    /** map the markers belong to */
+    private final GoogleMap mMap;
+    /** max number of hidden markers to keep around */
+    private final int mMaxSize;
+    /** hidden markers ready for reuse */
+    private final ArrayList<Marker> mFreeMarkers;
+    /** icon each marker is showing, keyed by marker ID, so we can skip redundant setIcon calls */
+    private final HashMap<String, BitmapDescriptor> mIcons;
+
+    /**
+     * Constructor
+     * @param map map the markers belong to
+     * @param maxSize max number of hidden markers to keep for reuse
+     */
+    public MarkerPool(GoogleMap map, int maxSize) {
+        mMap = map;
+        mMaxSize = maxSize;
+        mFreeMarkers = new ArrayList<Marker>(maxSize);
+        mIcons = new HashMap<String, BitmapDescriptor>();
+    }
+
+    /**
+     * Gets a visible marker, reusing a hidden one if there is one
+     * @param position marker position
+     * @param title marker title
+     * @param snippet marker snippet
+     * @param icon marker icon
+     * @return Google Maps marker
+     */
+    public Marker acquire(LatLng position, String title, String snippet,
+            BitmapDescriptor icon) {
+        int last = mFreeMarkers.size() - 1;
+        if (last < 0) {
+            Marker marker = mMap.addMarker(new MarkerOptions()
+                    .position(position)
+                    .title(title)
+                    .snippet(snippet)
+                    .icon(icon));
+            mIcons.put(marker.getId(), icon);
+            return marker;
+        }
+        Marker marker = mFreeMarkers.remove(last);
+        marker.setPosition(position);
+        marker.setTitle(title);
+        marker.setSnippet(snippet);
+        setIcon(marker, icon);
+        marker.setVisible(true);
+        return marker;
+    }
+
+    /**
+     * Sets a marker's icon if it isn't already showing it.  Icons come
+     * from {@link MarkerIcons} so the same icon is the same object.
+     * @param marker Google Maps marker from this pool
+     * @param icon marker icon
+     */
+    public void setIcon(Marker marker, BitmapDescriptor icon) {
+        if (mIcons.put(marker.getId(), icon) != icon) {
+            marker.setIcon(icon);
+        }
+    }
+
+    /**
+     * Hides a marker and keeps it for reuse, or removes it if the pool is full
+     * @param marker Google Maps marker that's no longer needed
+     */
+    public void release(Marker marker) {
+        if (mFreeMarkers.size() < mMaxSize) {
+            marker.hideInfoWindow();
+            marker.setVisible(false);
+            mFreeMarkers.add(marker);
+        } else {
+            mIcons.remove(marker.getId());
+            marker.remove();
+        }
+    }
+
+    /**
+     * Gets number of hidden markers waiting to be reused
+     * @return free marker count
+     */
+    public int size() {
+        return mFreeMarkers.size();
+    }
+
+    /**
+     * Removes all hidden markers from the map
+     */
+    public void clear() {
+        for (Marker marker : mFreeMarkers) {
+            mIcons.remove(marker.getId());
+            marker.remove();
+        }
+        mFreeMarkers.clear();
+    }
+}
@@ -0,0 +1,414 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completion object for one Meteor method call.  The call succeeds once
+ * the server has sent both its result and its "updated" message (so its
+ * writes are already in the local collections, like Meteor.call's
+ * callback), and fails on an error result, a timeout or cancellation.
+ * <p>
+ * The timeout counts from when the call is actually sent, so calls
+ * waiting in the offline queue don't time out.  Cancelling a call that
+ * hasn't been sent yet withdraws it; once it's been sent, cancelling just
+ * stops waiting for it.
+ * <p>
+ * This has no Android dependencies.  Listeners run on the executor given
+ * to the constructor (the UI thread for calls made through MyDDPState);
+ * get() blocks, so don't call it on that thread.
+ * @author kenyee
+ */
+public class MethodCall<T> implements Future<T> {
+    /**
+     * What happened to a call
+     */
+    public enum Status { PENDING, SUCCEEDED, FAILED, TIMED_OUT, CANCELLED }
+
+    /**
+     * Called when a call finishes, however it finishes
+     */
+    public interface Listener<T> {
+        /**
+         * Called when call is done
+         * @param call finished call
+         */
+        void onComplete(MethodCall<T> call);
+    }
+
+    /** runs listeners on whatever thread finished the call */
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final String mKey;
+    private final String mMethodName;
+    private final Class<T> mResultType;
+    private final Executor mListenerExecutor;
+    private final long mTimeoutMs;
+    /** withdraws the call if it hasn't been sent; set by whoever sends it */
+    private Runnable mOnCancel;
+    private Status mStatus = Status.PENDING;
+    private T mResult;
+    private String mError;
+    /** whether the result message has arrived */
+    private boolean mHasResult;
+    /** whether the updated message has arrived */
+    private boolean mIsUpdated;
+    /** listeners waiting for the call to finish (null once it has) */
+    private List<Listener<T>> mListeners = new ArrayList<Listener<T>>();
+
+    /**
+     * Constructor
+     * @param key idempotency key of call
+     * @param methodName name of Meteor method
+     * @param resultType type of result (Void.class if the method returns nothing)
+     * @param listenerExecutor runs listeners
+     * @param timeoutMs how long to wait for an answer once sent
+     */
+    public MethodCall(String key, String methodName, Class<T> resultType,
+            Executor listenerExecutor, long timeoutMs) {
+        mKey = key;
+        mMethodName = methodName;
+        mResultType = resultType;
+        mListenerExecutor = listenerExecutor;
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Makes a call that finishes when all of the given calls have.  It
+     * succeeds if they all succeed and otherwise finishes the way the
+     * first one to fail did.  Cancelling it cancels the calls.
+     * @param calls calls to wait for
+     * @return combined call
+     */
+    public static MethodCall<Void> allOf(Collection<? extends MethodCall<?>> calls) {
+        final List<MethodCall<?>> parts = new ArrayList<MethodCall<?>>(calls);
+        final MethodCall<Void> all = new MethodCall<Void>(null, "allOf", Void.class,
+                DIRECT_EXECUTOR, 0);
+        all.setOnCancel(new Runnable() {
+            @Override
+            public void run() {
+                for (MethodCall<?> part : parts) {
+                    part.cancel(false);
+                }
+            }
+        });
+        if (parts.isEmpty()) {
+            all.finish(Status.SUCCEEDED, null, null);
+            return all;
+        }
+        final int[] remaining = { parts.size() };
+        for (MethodCall<?> part : parts) {
+            part.addAnyListener(new Runnable() {
+                @Override
+                public void run() {
+                    // any part's failure finishes the whole thing
+                    for (MethodCall<?> done : parts) {
+                        Status status = done.getStatus();
+                        if ((status != Status.PENDING) && (status != Status.SUCCEEDED)) {
+                            all.finish(status, null, done.getError());
+                            return;
+                        }
+                    }
+                    synchronized (remaining) {
+                        if (--remaining[0] > 0) {
+                            return;
+                        }
+                    }
+                    all.finish(Status.SUCCEEDED, null, null);
+                }
+            });
+        }
+        return all;
+    }
+
+    /**
+     * Gets idempotency key of call
+     * @return key
+     */
+    public String getKey() {
+        return mKey;
+    }
+
+    /**
+     * Gets name of Meteor method
+     * @return method name
+     */
+    public String getMethodName() {
+        return mMethodName;
+    }
+
+    /**
+     * Gets how long to wait for an answer once the call is sent
+     * @return timeout in milliseconds
+     */
+    public long getTimeoutMs() {
+        return mTimeoutMs;
+    }
+
+    /**
+     * Gets what happened to the call so far
+     * @return call status
+     */
+    public synchronized Status getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * Whether the call succeeded
+     * @return true if it succeeded
+     */
+    public synchronized boolean isSuccessful() {
+        return mStatus == Status.SUCCEEDED;
+    }
+
+    /**
+     * Gets the result without waiting
+     * @return result, or null if the call hasn't succeeded (or returns nothing)
+     */
+    public synchronized T getResult() {
+        return mResult;
+    }
+
+    /**
+     * Gets why the call didn't succeed
+     * @return error message, or null if it hasn't failed
+     */
+    public synchronized String getError() {
+        return mError;
+    }
+
+    /**
+     * Adds a listener for when the call is done.  If it's already done,
+     * the listener is still called (on the listener executor).
+     * @param listener listener to add
+     * @return this call so calls can be chained
+     */
+    public MethodCall<T> addListener(final Listener<T> listener) {
+        synchronized (this) {
+            if (mListeners != null) {
+                mListeners.add(listener);
+                return this;
+            }
+        }
+        notifyListener(listener);
+        return this;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mStatus != Status.PENDING;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mStatus == Status.CANCELLED;
+    }
+
+    /**
+     * Cancels the call, withdrawing it if it hasn't been sent yet
+     * @param mayInterruptIfRunning ignored; there's no thread to interrupt
+     * @return false if the call was already done
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        Runnable onCancel;
+        synchronized (this) {
+            if (mStatus != Status.PENDING) {
+                return false;
+            }
+            onCancel = mOnCancel;
+        }
+        if (onCancel != null) {
+            onCancel.run();
+        }
+        return finish(Status.CANCELLED, null, "Cancelled");
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (mStatus == Status.PENDING) {
+            wait();
+        }
+        return report();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (mStatus == Status.PENDING) {
+            long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+        }
+        return report();
+    }
+
+    /**
+     * Sets what cancel() does to withdraw the call
+     * @param onCancel runs when the call is cancelled before it's done
+     */
+    synchronized void setOnCancel(Runnable onCancel) {
+        mOnCancel = onCancel;
+    }
+
+    /**
+     * Called when the server's result arrives
+     * @param result decoded result (String, Double, Map, List...) or null
+     */
+    void onResult(Object result) {
+        T typedResult;
+        try {
+            typedResult = convert(result);
+        } catch (ClassCastException e) {
+            fail("Unexpected result for " + mMethodName + ": " + result);
+            return;
+        }
+        synchronized (this) {
+            if (mStatus != Status.PENDING) {
+                return;
+            }
+            mResult = typedResult;
+            mHasResult = true;
+            if (!mIsUpdated) {
+                return;
+            }
+        }
+        finish(Status.SUCCEEDED, typedResult, null);
+    }
+
+    /**
+     * Called when the server says the call's writes have been sent
+     */
+    void onUpdated() {
+        T result;
+        synchronized (this) {
+            mIsUpdated = true;
+            if (!mHasResult) {
+                return;
+            }
+            result = mResult;
+        }
+        finish(Status.SUCCEEDED, result, null);
+    }
+
+    /**
+     * Called when the server returns an error
+     * @param message error message
+     */
+    void fail(String message) {
+        finish(Status.FAILED, null, message);
+    }
+
+    /**
+     * Called when the server hasn't answered within the timeout
+     */
+    void timeOut() {
+        finish(Status.TIMED_OUT, null, mMethodName + " timed out after " + mTimeoutMs + "ms");
+    }
+
+    /**
+     * Finishes the call (only once) and notifies listeners
+     * @return false if it was already finished
+     */
+    private boolean finish(Status status, T result, String error) {
+        List<Listener<T>> listeners;
+        synchronized (this) {
+            if (mStatus != Status.PENDING) {
+                return false;
+            }
+            mStatus = status;
+            mResult = result;
+            mError = error;
+            listeners = mListeners;
+            mListeners = null;
+            notifyAll();
+        }
+        for (Listener<T> listener : listeners) {
+            notifyListener(listener);
+        }
+        return true;
+    }
+
+    private void notifyListener(final Listener<T> listener) {
+        mListenerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onComplete(MethodCall.this);
+            }
+        });
+    }
+
+    /**
+     * Adds a listener that doesn't care about the result type
+     */
+    private void addAnyListener(final Runnable listener) {
+        addListener(new Listener<T>() {
+            @Override
+            public void onComplete(MethodCall<T> call) {
+                listener.run();
+            }
+        });
+    }
+
+    /**
+     * Converts a decoded JSON result to the result type; JSON numbers
+     * decode as Double so they're converted to the boxed type wanted
+     */
+    private T convert(Object result) {
+        if ((result == null) || (mResultType == Void.class)) {
+            return null;
+        }
+        if ((result instanceof Number) && !mResultType.isInstance(result)) {
+            Number number = (Number) result;
+            if (mResultType == Integer.class) {
+                result = number.intValue();
+            } else if (mResultType == Long.class) {
+                result = number.longValue();
+            } else if (mResultType == Double.class) {
+                result = number.doubleValue();
+            }
+        }
+        return mResultType.cast(result);
+    }
+
+    private T report() throws ExecutionException {
+        if (mStatus == Status.SUCCEEDED) {
+            return mResult;
+        }
+        if (mStatus == Status.CANCELLED) {
+            throw new CancellationException(mError);
+        }
+        throw new ExecutionException(mError, null);
+    }
+}
@@ -0,0 +1,333 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import android.util.Log;
+
+/**
+ * Append-only on-disk log of outbound Meteor method calls so calls made
+ * while offline (or still unanswered when the app dies) can be sent when
+ * the connection comes back.
+ * <p>
+ * Each line is a JSON record: {"key":...,"method":...,"args":[...]} when a
+ * call is made and {"done":key} when the server has answered it.  The file
+ * is truncated once every call in it is done.
+ * <p>
+ * The in-memory state is updated right away; records are written to the
+ * file in order on the writer executor so callers (usually the UI thread)
+ * never wait on file I/O.
+ * @author kenyee
+ */
+public class MethodCallLog {
+    private final static String TAG = "MethodCallLog";
+
+    /** truncate the log once this many calls are done and none are pending */
+    private static final int COMPACT_THRESHOLD = 100;
+
+    private final File mFile;
+    private final Gson mGson;
+    /** idempotency key to calls not answered yet, in the order they were made */
+    private final LinkedHashMap<String, Call> mPending;
+    /** number of done records in the file */
+    private int mDoneCount;
+    /** runs file writes in order */
+    private final Executor mWriteExecutor;
+    /** appends records to the file (only used on the writer executor) */
+    private Writer mWriter;
+
+    /**
+     * Outbound method call
+     */
+    public static class Call {
+        /** idempotency key, unique per call */
+        final String key;
+        /** name of Meteor method */
+        final String method;
+        /** method arguments */
+        final Object[] args;
+        /** whether the call has been sent on the current connection */
+        boolean sent;
+        /** whether the call is logged but waiting for release before it's sent */
+        boolean held;
+
+        Call(String key, String method, Object[] args) {
+            this.key = key;
+            this.method = method;
+            this.args = args;
+        }
+
+        /**
+         * Gets idempotency key of call
+         * @return key
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Gets name of Meteor method
+         * @return method name
+         */
+        public String getMethod() {
+            return method;
+        }
+
+        /**
+         * Gets method arguments
+         * @return arguments
+         */
+        public Object[] getArgs() {
+            return args;
+        }
+    }
+
+    /**
+     * One line of the log file
+     */
+    private static class Record {
+        String key;
+        String method;
+        Object[] args;
+        String done;
+    }
+
+    /**
+     * Constructor
+     * @param file log file
+     * @param gson used to read/write records
+     * @param writeExecutor runs file writes in order (e.g. a background thread)
+     */
+    public MethodCallLog(File file, Gson gson, Executor writeExecutor) {
+        mFile = file;
+        mGson = gson;
+        mWriteExecutor = writeExecutor;
+        mPending = new LinkedHashMap<String, Call>();
+    }
+
+    /**
+     * Reads calls left pending by the last run of the app
+     * @throws IOException if log can't be read
+     */
+    public synchronized void load() throws IOException {
+        if (!mFile.exists()) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(mFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Record record;
+                try {
+                    record = mGson.fromJson(line, Record.class);
+                } catch (JsonParseException e) {
+                    // partly written last line if we died while appending
+                    continue;
+                }
+                if (record == null) {
+                    continue;
+                }
+                if (record.done != null) {
+                    mPending.remove(record.done);
+                    mDoneCount++;
+                } else if ((record.key != null) && (record.method != null)) {
+                    mPending.put(record.key, new Call(record.key, record.method,
+                            (record.args != null) ? record.args : new Object[0]));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Records a new call.  The call is kept in memory even if writing it
+     * to the file fails.
+     * @param key idempotency key
+     * @param method name of Meteor method
+     * @param args method arguments
+     * @param held true to keep it from being sent until release is called;
+     *        after a restart it's sent like any other call
+     * @return the call
+     */
+    public synchronized Call append(String key, String method, Object[] args,
+            boolean held) {
+        Call call = new Call(key, method, args);
+        call.held = held;
+        mPending.put(key, call);
+        Record record = new Record();
+        record.key = key;
+        record.method = method;
+        record.args = args;
+        write(record);
+        return call;
+    }
+
+    /**
+     * Lets a held call be sent
+     * @param key idempotency key of call
+     * @return false if the call isn't pending or wasn't held
+     */
+    public synchronized boolean release(String key) {
+        Call call = mPending.get(key);
+        if ((call == null) || !call.held) {
+            return false;
+        }
+        call.held = false;
+        return true;
+    }
+
+    /**
+     * Records that the server has answered a call
+     * @param key idempotency key of call
+     */
+    public synchronized void complete(String key) {
+        if (mPending.remove(key) == null) {
+            return;
+        }
+        if (mPending.isEmpty() && (mDoneCount >= COMPACT_THRESHOLD)) {
+            // nothing left to replay so start the file over
+            truncate();
+            return;
+        }
+        Record record = new Record();
+        record.done = key;
+        write(record);
+        mDoneCount++;
+    }
+
+    /**
+     * Drops a call that hasn't been sent on the current connection.  A
+     * call sent before a disconnect may still have reached the server.
+     * @param key idempotency key of call
+     * @return false if the call isn't pending or has been sent
+     */
+    public synchronized boolean cancelUnsent(String key) {
+        Call call = mPending.get(key);
+        if ((call == null) || call.sent) {
+            return false;
+        }
+        complete(key);
+        return true;
+    }
+
+    /**
+     * Gets calls that haven't been sent on the current connection yet and
+     * aren't held, marking them as sent
+     * @return unsent calls in the order they were made
+     */
+    public synchronized List<Call> takeUnsent() {
+        List<Call> unsent = new ArrayList<Call>();
+        for (Call call : mPending.values()) {
+            if (!call.sent && !call.held) {
+                call.sent = true;
+                unsent.add(call);
+            }
+        }
+        return unsent;
+    }
+
+    /**
+     * Marks every pending call as unsent, e.g. when the connection drops
+     * before they're answered
+     */
+    public synchronized void resetSent() {
+        for (Call call : mPending.values()) {
+            call.sent = false;
+        }
+    }
+
+    /**
+     * Gets calls waiting for the server
+     * @return pending calls in the order they were made
+     */
+    public synchronized List<Call> getPending() {
+        return new ArrayList<Call>(mPending.values());
+    }
+
+    /**
+     * Gets number of calls waiting for the server
+     * @return pending call count
+     */
+    public synchronized int size() {
+        return mPending.size();
+    }
+
+    /**
+     * Queues a record to be appended to the file.  It's serialized now
+     * so later changes to the call's arguments don't affect it.
+     */
+    private void write(Record record) {
+        final String line = mGson.toJson(record);
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mWriter == null) {
+                        mWriter = new BufferedWriter(new OutputStreamWriter(
+                                new FileOutputStream(mFile, true), "UTF-8"));
+                    }
+                    mWriter.write(line);
+                    mWriter.write('\n');
+                    mWriter.flush();
+                } catch (IOException e) {
+                    // still gets sent if we don't die first
+                    Log.w(TAG, "Couldn't write method call log", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues emptying the file
+     */
+    private void truncate() {
+        mDoneCount = 0;
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mWriter != null) {
+                        mWriter.close();
+                    }
+                    mWriter = new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(mFile, false), "UTF-8"));
+                } catch (IOException e) {
+                    mWriter = null;
+                    Log.w(TAG, "Couldn't truncate method call log", e);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,166 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties;
+
+/**
+ * Latency stats for one Meteor method: how long calls take to get their
+ * "result" and "updated" messages, how many failed or timed out and how
+ * many are in flight.
+ * <p>
+ * This has no Android dependencies; all methods are synchronized.
+ * @author kenyee
+ */
+public class MethodLatencyStats {
+    /** name of Meteor method */
+    private final String mMethod;
+    /** send to "result" latency of successful calls */
+    private final LatencyHistogram mResultLatency;
+    /** send to "result" latency of calls that returned an error */
+    private final LatencyHistogram mErrorLatency;
+    /** send to "updated" latency */
+    private final LatencyHistogram mUpdatedLatency;
+    /** calls sent and not answered or timed out yet */
+    private int mInFlight;
+    /** calls that weren't answered in time */
+    private long mTimeouts;
+
+    /**
+     * Constructor
+     * @param method name of Meteor method
+     */
+    public MethodLatencyStats(String method) {
+        mMethod = method;
+        mResultLatency = new LatencyHistogram();
+        mErrorLatency = new LatencyHistogram();
+        mUpdatedLatency = new LatencyHistogram();
+    }
+
+    /**
+     * Called when a call is sent
+     */
+    public synchronized void onSent() {
+        mInFlight++;
+    }
+
+    /**
+     * Called when a call's "result" message arrives
+     * @param micros time since call was sent in microseconds
+     * @param isError whether the result was an error
+     * @param timedOut whether the call was already counted as timed out
+     *        or abandoned (so it's no longer counted as in flight)
+     */
+    public synchronized void onResult(long micros, boolean isError, boolean timedOut) {
+        if (!timedOut) {
+            mInFlight--;
+        }
+        if (isError) {
+            mErrorLatency.record(micros);
+        } else {
+            mResultLatency.record(micros);
+        }
+    }
+
+    /**
+     * Called when a call's "updated" message arrives
+     * @param micros time since call was sent in microseconds
+     */
+    public synchronized void onUpdated(long micros) {
+        mUpdatedLatency.record(micros);
+    }
+
+    /**
+     * Called when a call hasn't been answered in time
+     */
+    public synchronized void onTimeout() {
+        mInFlight--;
+        mTimeouts++;
+    }
+
+    /**
+     * Called when a call's connection dropped before it was answered; it's
+     * sent again (and counted again) on the next connection
+     */
+    public synchronized void onAbandoned() {
+        mInFlight--;
+    }
+
+    /**
+     * Gets name of Meteor method
+     * @return method name
+     */
+    public String getMethod() {
+        return mMethod;
+    }
+
+    /**
+     * Gets send to "result" latency of successful calls
+     * @return histogram in microseconds
+     */
+    public LatencyHistogram getResultLatency() {
+        return mResultLatency;
+    }
+
+    /**
+     * Gets send to "result" latency of calls that returned an error
+     * @return histogram in microseconds
+     */
+    public LatencyHistogram getErrorLatency() {
+        return mErrorLatency;
+    }
+
+    /**
+     * Gets send to "updated" latency
+     * @return histogram in microseconds
+     */
+    public LatencyHistogram getUpdatedLatency() {
+        return mUpdatedLatency;
+    }
+
+    /**
+     * Gets number of calls sent and not answered or timed out yet
+     * @return in-flight count
+     */
+    public synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    /**
+     * Gets number of calls that weren't answered in time
+     * @return timeout count
+     */
+    public synchronized long getTimeouts() {
+        return mTimeouts;
+    }
+
+    /**
+     * Summarizes stats in milliseconds for logging
+     */
+    @Override
+    public synchronized String toString() {
+        return mMethod + ": n=" + mResultLatency.getCount()
+                + " p50=" + toMs(mResultLatency.getValueAtPercentile(50))
+                + " p95=" + toMs(mResultLatency.getValueAtPercentile(95))
+                + " p99=" + toMs(mResultLatency.getValueAtPercentile(99))
+                + " updated.p99=" + toMs(mUpdatedLatency.getValueAtPercentile(99))
+                + " errors=" + mErrorLatency.getCount()
+                + " inFlight=" + mInFlight + " timeouts=" + mTimeouts;
+    }
+
+    private static String toMs(long micros) {
+        return (micros / 1000) + "ms";
+    }
+}
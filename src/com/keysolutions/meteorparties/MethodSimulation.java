@@ -0,0 +1,43 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties;
+
+/**
+ * Local simulation of a Meteor method (like a Meteor client stub) so the
+ * UI can show the method's effect before the server round trip finishes.
+ * All three methods are called on the UI thread.
+ * @author kenyee
+ */
+public interface MethodSimulation {
+    /**
+     * Applies the method's expected changes to local data.  Called right
+     * before the method is sent.
+     */
+    void apply();
+
+    /**
+     * Undoes the local changes because the server rejected the method
+     * or didn't answer before the call timed out
+     */
+    void rollback();
+
+    /**
+     * Drops the local changes because the server's data now includes the
+     * method's writes (DDP "updated" message)
+     */
+    void confirm();
+}
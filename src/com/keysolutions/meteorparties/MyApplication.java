@@ -17,8 +17,11 @@
 package com.keysolutions.meteorparties;
 
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
 import android.content.res.Configuration;
+import android.os.Build;
 
 /**
  * Holds global application state using Android's Application object
@@ -29,6 +32,9 @@ public class MyApplication extends Application {
     /** Android application context */
     private static Context sContext = null;
     
+    /** how often debug builds log DDP message stats */
+    private static final long MESSAGE_STATS_LOG_INTERVAL_MS = 60000;
+
     /** Saves current party ID to share between fragments/activities **/
     private static String sSelectedPartyId = null;
     
@@ -49,6 +55,19 @@ public class MyApplication extends Application {
     @Override
     public void onLowMemory() {
         super.onLowMemory();
+        // onTrimMemory needs API 14, so this is all older devices get
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            MyDDPState.getInstance().saveSnapshot();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // app went to the background, so save parties for a warm start
+            MyDDPState.getInstance().saveSnapshot();
+        }
     }
 
     /**
@@ -57,6 +76,14 @@ public class MyApplication extends Application {
     protected void initSingletons() {
         // Initialize App DDP State Singleton
         MyDDPState.initInstance(MyApplication.sContext);
+        if (getResources().getBoolean(R.bool.use_persistent_store)) {
+            MyDDPState.getInstance().enablePersistentStore();
+        }
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            MyDDPState.getInstance().setMessageStatsLogInterval(MESSAGE_STATS_LOG_INTERVAL_MS);
+        }
+        // show the parties we had last time until live data arrives
+        MyDDPState.getInstance().loadSnapshot();
     }
     
     /**
@@ -0,0 +1,135 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties;
+
+import java.util.List;
+
+import com.keysolutions.ddpclient.android.DDPStateSingleton.DDPSTATE;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
+
+/**
+ * Listener for DDP events from {@link MyDDPState}.  Events are delivered
+ * on the UI thread as plain objects instead of Intents, so there's no
+ * Bundle packing or JSON re-serialization between the DDP thread and the
+ * UI.  Override just the events you need; register in onResume and
+ * unregister in onPause with MyDDPState.addListener/removeListener.
+ * @author kenyee
+ */
+public abstract class MyDDPEventListener {
+    /** activity to show error dialogs in */
+    private final Activity mActivity;
+
+    /**
+     * Constructor
+     * @param activity activity this listener is for
+     */
+    public MyDDPEventListener(Activity activity) {
+        mActivity = activity;
+    }
+
+    /**
+     * Called on every connection state change before the more specific
+     * connect/login/logout/error events
+     * @param state new connection state
+     */
+    protected void onConnectionState(DDPSTATE state) {
+    }
+
+    /**
+     * Called when connected to the server (usually to subscribe).
+     * MyDDPState has already started logging in with the resume token
+     * if there is one.
+     * @param ddp DDP state singleton
+     */
+    protected void onDDPConnect(MyDDPState ddp) {
+    }
+
+    /**
+     * Called when user has logged in
+     */
+    protected void onLogin() {
+    }
+
+    /**
+     * Called when user has logged out
+     */
+    protected void onLogout() {
+    }
+
+    /**
+     * Called once per batch of subscription changes.  By default this
+     * calls onSubscriptionUpdate for each net change in the batch.
+     * @param changes net changes in arrival order; shared with other
+     *        listeners, so don't modify it
+     */
+    protected void onSubscriptionBatch(List<SubscriptionChange> changes) {
+        for (int i = 0; i < changes.size(); i++) {
+            SubscriptionChange change = changes.get(i);
+            onSubscriptionUpdate(change.getChangeType(),
+                    change.getCollectionName(), change.getDocId());
+        }
+    }
+
+    /**
+     * Called for each net change to a subscribed document
+     * @param changeType DDP change type
+     * @param collectionName name of collection the document is in
+     * @param docId Meteor object ID of document
+     */
+    protected void onSubscriptionUpdate(String changeType,
+            String collectionName, String docId) {
+    }
+
+    /**
+     * Called when a Meteor method call returns a result
+     * @param methodName name of Meteor method
+     * @param result decoded result (String, Double, Map, List...) or null
+     */
+    protected void onMethodResult(String methodName, Object result) {
+    }
+
+    /**
+     * Called when a Meteor method call fails.  By default this shows
+     * the error like any other DDP error.
+     * @param methodName name of Meteor method
+     * @param message error message from the server
+     */
+    protected void onMethodError(String methodName, String message) {
+        onError("Server Error", message);
+    }
+
+    /**
+     * Called on DDP errors.  By default this shows an error dialog.
+     * @param title title of error
+     * @param msg details of error
+     */
+    protected void onError(String title, String msg) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(mActivity);
+        builder.setMessage(msg)
+            .setTitle(title);
+        builder.setPositiveButton("OK", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                dialog.dismiss();
+            }
+        });
+        AlertDialog dialog = builder.create();
+        dialog.show();
+    }
+}
@@ -16,8 +16,24 @@
 
 package com.keysolutions.meteorparties;
 
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.gson.Gson;
 
 import com.keysolutions.ddpclient.DDPListener;
 import com.keysolutions.ddpclient.DDPClient.DdpMessageField;
@@ -25,8 +41,12 @@ import com.keysolutions.ddpclient.DDPClient.DdpMessageType;
 import com.keysolutions.ddpclient.android.DDPStateSingleton;
 
 import android.content.Context;
-import android.content.Intent;
-import android.support.v4.content.LocalBroadcastManager;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
 
 /**
  * Implements specific DDP state/commands for this application
@@ -35,8 +55,165 @@ import android.support.v4.content.LocalBroadcastManager;
  * This is a singleton class that should be initialized in your MyApplication singleton.
  */
 public class MyDDPState extends DDPStateSingleton {
-    /** collection of Parties */
-    private Map<String, Party> mParties;
+    private final static String TAG = "MyDDPState";
+
+    /** default time to collect subscription changes before broadcasting (one 60fps frame) */
+    public static final long DEFAULT_BATCH_WINDOW_MS = 16;
+    /** margin around the viewport to subscribe to, as a fraction of the viewport size */
+    private static final double VIEWPORT_PADDING = 0.5;
+    /** resubscribe when zoomed in so far the viewport is this much smaller than the subscription */
+    private static final double VIEWPORT_SHRINK_RATIO = 8.0;
+    /** characters Meteor's Random.id() uses for document IDs */
+    private static final String DOC_ID_CHARS =
+            "23456789ABCDEFGHJKLMNPQRSTWXYZabcdefghijkmnopqrstuvwxyz";
+    /** length of Meteor document IDs */
+    private static final int DOC_ID_LENGTH = 17;
+    /** default time a method call can go unanswered before it counts as timed out */
+    public static final long DEFAULT_METHOD_TIMEOUT_MS = 30000;
+    /** name of outbound method call log in app's files directory */
+    private static final String CALL_LOG_FILE = "method_calls.log";
+    /** name of warm-start snapshot file in app's files directory */
+    private static final String SNAPSHOT_FILE = "parties.snapshot";
+
+    /** wrapper around the DDP parties collection */
+    private PartyCollection mPartyCollection;
+    /** collection of Parties (from mPartyCollection) */
+    private ConcurrentHashMap<String, Party> mParties;
+    /** spatial index of Parties so map doesn't have to scan them all */
+    private PartyGridIndex mPartyIndex;
+    /** optional SQLite store of Parties (null if not enabled) */
+    private volatile PartyStore mPartyStore;
+    /** user ID to display email, kept up to date from the directory subscription */
+    private ConcurrentHashMap<String, String> mUserEmails;
+    /** reverse index from users to the parties they've RSVP'd to */
+    private UserRsvpIndex mUserRsvpIndex;
+    /** subscription changes waiting to be broadcast */
+    private SubscriptionChangeBatch mPendingChanges;
+    /** how long to collect subscription changes before broadcasting them */
+    private long mBatchWindowMs;
+    /** used to broadcast batches on the UI thread */
+    private Handler mUiHandler;
+    /** runs file writes in order on a background thread */
+    private Handler mIoHandler;
+    /**
+     * registered event listeners; replaced instead of changed so events
+     * can be dispatched without locking or allocating an iterator
+     */
+    private volatile MyDDPEventListener[] mListeners = new MyDDPEventListener[0];
+    /** guards changes to mListeners */
+    private final Object mListenersLock = new Object();
+    /** last connection state sent to listeners (only used on the UI thread) */
+    private DDPSTATE mListenerState = DDPSTATE.Disconnected;
+    /**
+     * IDs of parties loaded from the snapshot or kept across a reconnect
+     * that the server hasn't re-sent yet
+     */
+    private Set<String> mUnconfirmedPartyIds;
+    /** whether the parties subscription has sent all its initial documents */
+    private volatile boolean mPartiesReady;
+    /**
+     * guards mPartiesReady changes together with the unconfirmed party
+     * sweep and snapshot loads, so a snapshot party can't be marked
+     * unconfirmed after the sweep that should have removed it
+     */
+    private final Object mPartiesReadyLock = new Object();
+    /** padded area the latest viewport subscription to parties covers */
+    private ViewportBounds mPartiesBounds;
+    /** ID of viewport subscription to parties that is ready */
+    private String mActivePartiesSubId;
+    /** ID of viewport subscription to parties that is still loading */
+    private String mPendingPartiesSubId;
+    /** RSVP calls waiting for the call in flight for the same party */
+    private final CoalescingCallQueue<PendingRsvp> mRsvpCalls = new CoalescingCallQueue<PendingRsvp>();
+    /** outbound method calls waiting to be sent or answered */
+    private MethodCallLog mCallLog;
+    /** completion objects of calls made since the app started, by idempotency key */
+    private final ConcurrentHashMap<String, MethodCall<?>> mCalls =
+            new ConcurrentHashMap<String, MethodCall<?>>();
+    /** sends on the current connection that are waiting for a result, by idempotency key */
+    private final ConcurrentHashMap<String, SentCall> mSentCalls =
+            new ConcurrentHashMap<String, SentCall>();
+    /** how long method calls wait for an answer once sent */
+    private volatile long mMethodTimeoutMs = DEFAULT_METHOD_TIMEOUT_MS;
+    /** runs method call listeners on the UI thread */
+    private final Executor mUiExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mUiHandler.post(command);
+        }
+    };
+    /** local simulations of pending calls by idempotency key */
+    private final ConcurrentHashMap<String, MethodSimulation> mSimulations =
+            new ConcurrentHashMap<String, MethodSimulation>();
+    /** latency stats per Meteor method */
+    private final ConcurrentHashMap<String, MethodLatencyStats> mMethodStats =
+            new ConcurrentHashMap<String, MethodLatencyStats>();
+    /** whether we're logged in so method calls can be sent */
+    private volatile boolean mCanSendCalls;
+    /** used to pick IDs for parties created here */
+    private final SecureRandom mRandom = new SecureRandom();
+    /** last map camera position so it can be saved with the snapshot */
+    private volatile CameraPosition mLastCameraPosition;
+    /** DDP message counters per collection and change type */
+    private final DdpMessageStats mMessageStats = new DdpMessageStats();
+    /** how often message stats are logged (0 if they aren't) */
+    private long mStatsLogIntervalMs;
+    /**
+     * whether to estimate message sizes; walking every document costs
+     * more than handling it, so it's only done while stats are logged
+     */
+    private volatile boolean mMeasureMessageBytes;
+    /** counters as of the last stats log line */
+    private List<DdpMessageStats.Counter> mLastLoggedStats;
+    /** broadcast times per collection as of the last stats log line */
+    private Map<String, Long> mLastLoggedFlushNanos;
+    /** logs message stats periodically */
+    private final Runnable mLogMessageStats = new Runnable() {
+        @Override
+        public void run() {
+            logMessageStats();
+            if (mStatsLogIntervalMs > 0) {
+                mUiHandler.postDelayed(this, mStatsLogIntervalMs);
+            }
+        }
+    };
+    /** writes the warm-start snapshot (queued at most once at a time) */
+    private final Runnable mSaveSnapshot = new Runnable() {
+        @Override
+        public void run() {
+            writeSnapshot();
+        }
+    };
+    /** broadcasts pending subscription changes */
+    private final Runnable mFlushChanges = new Runnable() {
+        @Override
+        public void run() {
+            flushSubscriptionChanges();
+        }
+    };
+    
+    /**
+     * Receives the results of a party query
+     */
+    public interface PartiesCallback {
+        /**
+         * Called on the UI thread with the parties found
+         * @param parties Parties matching the query
+         */
+        void onParties(List<Party> parties);
+    }
+
+    /**
+     * RSVP tapped by the current user that's waiting to be sent
+     */
+    private static class PendingRsvp {
+        /** "yes", "no" or "maybe" */
+        String value;
+        /** Party's simulated RSVP sequence number for this tap */
+        int seq;
+        /** completion object handed back to whoever tapped */
+        MethodCall<Void> call;
+    }
     
     /**
      * Constructor for this singleton (private because it's a singleton)
@@ -45,7 +222,54 @@ public class MyDDPState extends DDPStateSingleton {
     private MyDDPState(Context context) {
         // Constructor hidden because this is a singleton
         super(context);
-        mParties = new ConcurrentHashMap<String, Party>();
+        mPartyCollection = new PartyCollection(new PartyCollection.Listener() {
+            @Override
+            public void onPartySaved(Party party) {
+                PartyStore store = mPartyStore;
+                if (store != null) {
+                    store.put(party);
+                }
+            }
+            @Override
+            public void onPartyRemoved(String docId) {
+                PartyStore store = mPartyStore;
+                if (store != null) {
+                    store.remove(docId);
+                }
+            }
+        });
+        mParties = mPartyCollection.getParties();
+        mPartyIndex = mPartyCollection.getPartyIndex();
+        mUnconfirmedPartyIds = mPartyCollection.getUnconfirmedPartyIds();
+        mUserRsvpIndex = new UserRsvpIndex();
+        mUserEmails = new ConcurrentHashMap<String, String>();
+        mPendingChanges = new SubscriptionChangeBatch();
+        mBatchWindowMs = DEFAULT_BATCH_WINDOW_MS;
+        mUiHandler = new Handler(Looper.getMainLooper());
+        HandlerThread ioThread = new HandlerThread("MyDDPStateIO",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        ioThread.start();
+        mIoHandler = new Handler(ioThread.getLooper());
+        mRsvpCalls.setOnDiscardListener(new CoalescingCallQueue.OnDiscardListener<PendingRsvp>() {
+            @Override
+            public void onDiscarded(String partyId, PendingRsvp rsvp) {
+                // a later tap replaced it, so it'll never be sent
+                rsvp.call.cancel(false);
+            }
+        });
+        mCallLog = new MethodCallLog(new File(context.getFilesDir(), CALL_LOG_FILE),
+                new Gson(), new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        mIoHandler.post(command);
+                    }
+                });
+        try {
+            // calls left over from last time get sent once we're logged in
+            mCallLog.load();
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't read method call log", e);
+        }
     }
 
     /**
@@ -69,6 +293,33 @@ public class MyDDPState extends DDPStateSingleton {
         return (MyDDPState) mInstance;
     }
     
+    /**
+     * Registers a listener for DDP events, usually in onResume
+     * @param listener listener to add
+     */
+    public void addListener(MyDDPEventListener listener) {
+        synchronized (mListenersLock) {
+            MyDDPEventListener[] listeners = new MyDDPEventListener[mListeners.length + 1];
+            System.arraycopy(mListeners, 0, listeners, 0, mListeners.length);
+            listeners[mListeners.length] = listener;
+            mListeners = listeners;
+        }
+    }
+
+    /**
+     * Unregisters a listener for DDP events, usually in onPause
+     * @param listener listener to remove
+     */
+    public void removeListener(MyDDPEventListener listener) {
+        synchronized (mListenersLock) {
+            List<MyDDPEventListener> listeners = new ArrayList<MyDDPEventListener>(
+                    Arrays.asList(mListeners));
+            if (listeners.remove(listener)) {
+                mListeners = listeners.toArray(new MyDDPEventListener[listeners.size()]);
+            }
+        }
+    }
+
     /**
      * Gets current collection of Parties
      * @return parties collection
@@ -88,6 +339,166 @@ public class MyDDPState extends DDPStateSingleton {
         }
         return mParties.get(partyId);
     }
+
+    /**
+     * Gets Parties located inside a bounding box using the spatial index.
+     * If west is greater than east, the box crosses the 180th meridian.
+     * @param south southern latitude
+     * @param west western longitude
+     * @param north northern latitude
+     * @param east eastern longitude
+     * @return Parties inside the box
+     */
+    public List<Party> getPartiesInBounds(double south, double west,
+            double north, double east) {
+        return getPartiesById(mPartyIndex.query(south, west, north, east));
+    }
+
+    /**
+     * Gets Parties created by a user.  With the persistent store enabled
+     * the query runs on a background thread.
+     * @param owner Meteor user ID of owner
+     * @param callback gets the Parties the user owns on the UI thread
+     */
+    public void getPartiesByOwner(final String owner, final PartiesCallback callback) {
+        final PartyStore store = mPartyStore;
+        if (store != null) {
+            queryStore(new Runnable() {
+                @Override
+                public void run() {
+                    deliverParties(getPartiesById(store.queryIdsByOwner(owner)), callback);
+                }
+            });
+            return;
+        }
+        List<Party> parties = new ArrayList<Party>();
+        for (Party party : mParties.values()) {
+            if ((owner != null) && owner.equals(party.getOwner())) {
+                parties.add(party);
+            }
+        }
+        deliverParties(parties, callback);
+    }
+
+    /**
+     * Gets public Parties.  With the persistent store enabled the query
+     * runs on a background thread.
+     * @param callback gets the Parties anyone can RSVP to on the UI thread
+     */
+    public void getPublicParties(final PartiesCallback callback) {
+        final PartyStore store = mPartyStore;
+        if (store != null) {
+            queryStore(new Runnable() {
+                @Override
+                public void run() {
+                    deliverParties(getPartiesById(store.queryPublicIds()), callback);
+                }
+            });
+            return;
+        }
+        List<Party> parties = new ArrayList<Party>();
+        for (Party party : mParties.values()) {
+            if (party.isPublic()) {
+                parties.add(party);
+            }
+        }
+        deliverParties(parties, callback);
+    }
+
+    /**
+     * Runs a persistent store query on the I/O thread
+     * @param query query that delivers its own results
+     */
+    private void queryStore(final Runnable query) {
+        mIoHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    query.run();
+                } catch (SQLiteException e) {
+                    Log.w(TAG, "Party store query failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands query results to a callback on the UI thread
+     * @param parties Parties found
+     * @param callback callback to give them to
+     */
+    private void deliverParties(final List<Party> parties, final PartiesCallback callback) {
+        mUiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onParties(parties);
+            }
+        });
+    }
+
+    /**
+     * Looks up Parties by ID, skipping any we don't have
+     * @param partyIds Meteor object IDs of parties
+     * @return Parties found
+     */
+    private List<Party> getPartiesById(List<String> partyIds) {
+        List<Party> parties = new ArrayList<Party>(partyIds.size());
+        for (String partyId : partyIds) {
+            Party party = mParties.get(partyId);
+            if (party != null) {
+                parties.add(party);
+            }
+        }
+        return parties;
+    }
+
+    /**
+     * Keeps Parties in a SQLite store so they survive process death and
+     * owner/public queries run against the database.  Call
+     * this before loadSnapshot so the parties are loaded from the store.
+     */
+    public void enablePersistentStore() {
+        if (mPartyStore == null) {
+            mPartyStore = new PartyStore(MyApplication.getAppContext());
+        }
+    }
+
+    /**
+     * Gets index of which parties each user has RSVP'd to
+     * @return user RSVP index
+     */
+    public UserRsvpIndex getUserRsvpIndex() {
+        return mUserRsvpIndex;
+    }
+
+    /**
+     * Gets Parties a user has RSVP'd to without scanning every party
+     * @param userId Meteor user ID
+     * @param rsvp "yes", "no", "maybe" or null for any RSVP
+     * @return Parties the user has RSVP'd to
+     */
+    public List<Party> getPartiesForUser(String userId, String rsvp) {
+        List<Party> parties = new ArrayList<Party>();
+        if (userId == null) {
+            return parties;
+        }
+        for (String partyId : mUserRsvpIndex.getPartyIds(userId, rsvp)) {
+            Party party = mParties.get(partyId);
+            if (party != null) {
+                parties.add(party);
+            }
+        }
+        return parties;
+    }
+
+    /**
+     * Gets Parties the current user has RSVP'd to
+     * @param rsvp "yes", "no", "maybe" or null for any RSVP
+     * @return Parties current user has RSVP'd to (empty if not logged in)
+     */
+    public List<Party> getMyParties(String rsvp) {
+        return getPartiesForUser(getUserId(), rsvp);
+    }
     
     /**
      * Lets us lightly wrapper default implementation's objects
@@ -97,73 +508,951 @@ public class MyDDPState extends DDPStateSingleton {
     @Override
     public void broadcastSubscriptionChanged(String collectionName,
             String changetype, String docId) {
+        long startNanos = System.nanoTime();
+        long bytes = 0;
+        if (mMeasureMessageBytes && !changetype.equals(DdpMessageType.REMOVED)) {
+            bytes = DdpMessageStats.estimateSize(getCollection(collectionName).get(docId));
+        }
+        String broadcastType = wrapSubscriptionChange(collectionName, changetype, docId);
+        long wrappedNanos = System.nanoTime();
+        mMessageStats.recordMessage(collectionName, changetype, bytes,
+                wrappedNanos - startNanos);
+        if (broadcastType != null) {
+            // do the broadcast after we've taken care of our parties wrapper
+            queueSubscriptionChange(collectionName, broadcastType, docId);
+            mMessageStats.recordBroadcast(collectionName, changetype,
+                    System.nanoTime() - wrappedNanos);
+        }
+    }
+
+    /**
+     * Updates our wrappers and indexes for a subscription change
+     * @param collectionName name of collection the document is in
+     * @param changetype DDP change type
+     * @param docId Meteor object ID of document
+     * @return change type to broadcast to the UI or null if nothing
+     *         the UI shows changed
+     */
+    @SuppressWarnings("unchecked")
+    private String wrapSubscriptionChange(String collectionName,
+            String changetype, String docId) {
         if (collectionName.equals("parties")) {
-            if (changetype.equals(DdpMessageType.ADDED)) {
-                mParties.put(docId, new Party(docId, (Map<String, Object>) getCollection(collectionName).get(docId)));
-            } else if (changetype.equals(DdpMessageType.REMOVED)) {
-                mParties.remove(docId);
-            } else if (changetype.equals(DdpMessageType.UPDATED)) {
-                mParties.get(docId).refreshFields();
+            Map<String, Object> fields = changetype.equals(DdpMessageType.REMOVED) ? null
+                    : (Map<String, Object>) getCollection(collectionName).get(docId);
+            return mPartyCollection.apply(changetype, docId, fields);
+        } else if (collectionName.equals("users")) {
+            // the directory subscription publishes users' emails
+            if (changetype.equals(DdpMessageType.REMOVED)) {
+                mUserEmails.remove(docId);
+            } else {
+                indexUserEmail(docId);
+            }
+        }
+        return changetype;
+    }
+
+    /**
+     * Gets email address to display for a user from the directory index
+     * instead of digging through the users collection
+     * @param userId Meteor user ID
+     * @return user's email or null if user isn't in the directory
+     */
+    @Override
+    public String getUserEmail(String userId) {
+        if (userId == null) {
+            return null;
+        }
+        return mUserEmails.get(userId);
+    }
+
+    /**
+     * Updates directory index entry for a user from their first email address
+     * @param userId Meteor user ID
+     */
+    @SuppressWarnings("unchecked")
+    private void indexUserEmail(String userId) {
+        String email = null;
+        Map<String, Object> fields = getCollection("users").get(userId);
+        if (fields != null) {
+            List<Map<String, Object>> emails = (List<Map<String, Object>>) fields.get("emails");
+            if ((emails != null) && (emails.size() > 0)) {
+                email = (String) emails.get(0).get("address");
+            }
+        }
+        if (email != null) {
+            mUserEmails.put(userId, email);
+        } else {
+            mUserEmails.remove(userId);
+        }
+    }
+
+    /**
+     * Queues a subscription change to be broadcast, batched up so
+     * listeners get at most one broadcast per window
+     * @param collectionName name of collection the document is in
+     * @param changetype DDP change type
+     * @param docId Meteor object ID of document
+     */
+    private void queueSubscriptionChange(String collectionName,
+            String changetype, String docId) {
+        if (mPendingChanges.add(collectionName, changetype, docId)) {
+            mUiHandler.postDelayed(mFlushChanges, mBatchWindowMs);
+        }
+    }
+
+    /**
+     * Keeps the parties we have when the connection drops; they're
+     * confirmed or removed when the parties subscription is ready again
+     * after reconnecting.  Logged method calls are (re)sent once we're
+     * logged in again.
+     */
+    @Override
+    public void broadcastConnectionState(DDPSTATE ddpstate) {
+        if (ddpstate == DDPSTATE.Closed) {
+            synchronized (mPartiesReadyLock) {
+                if (mPartiesReady) {
+                    mPartiesReady = false;
+                    mUnconfirmedPartyIds.addAll(mParties.keySet());
+                }
+            }
+            // calls in flight won't get replies, so send them again; their
+            // timers are stopped so the resend gets a fresh timeout
+            abandonSentCalls();
+            mCallLog.resetSent();
+            synchronized (this) {
+                // server forgets subscriptions when the connection drops
+                mPartiesBounds = null;
+                mActivePartiesSubId = null;
+                mPendingPartiesSubId = null;
+            }
+        }
+        mCanSendCalls = (ddpstate == DDPSTATE.LoggedIn);
+        final DDPSTATE state = ddpstate;
+        mUiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                dispatchConnectionState(state);
+            }
+        });
+        // send any calls made while we were offline
+        sendPendingCalls();
+    }
+
+    /**
+     * Tells listeners about a connection state change.  Logging in with
+     * the resume token is done here once rather than by every listener.
+     * @param state new connection state
+     */
+    private void dispatchConnectionState(DDPSTATE state) {
+        DDPSTATE previousState = mListenerState;
+        mListenerState = state;
+        boolean isLogout = (state == DDPSTATE.Connected)
+                && (previousState == DDPSTATE.LoggedIn);
+        if ((state == DDPSTATE.Connected) && !isLogout && !isLoggedIn()) {
+            String resumeToken = getResumeToken();
+            if (resumeToken != null) {
+                login(resumeToken);
+            }
+        }
+        for (MyDDPEventListener listener : mListeners) {
+            listener.onConnectionState(state);
+            if (isLogout) {
+                listener.onLogout();
+            } else if (state == DDPSTATE.Connected) {
+                listener.onDDPConnect(this);
+            } else if (state == DDPSTATE.LoggedIn) {
+                listener.onLogin();
+            } else if (state == DDPSTATE.Closed) {
+                listener.onError("Connection Issue",
+                        "Error connecting to server...please try again");
             }
         }
-        // do the broadcast after we've taken care of our parties wrapper
-        super.broadcastSubscriptionChanged(collectionName, changetype, docId);
+    }
+
+    /**
+     * Sends DDP errors (e.g. login failures) to listeners
+     */
+    @Override
+    public void broadcastDDPError(final String errorMsg) {
+        mUiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (MyDDPEventListener listener : mListeners) {
+                    listener.onError("Login Error", errorMsg);
+                }
+            }
+        });
+    }
+
+    /**
+     * Subscribes to a Meteor publication, listening for when it's ready
+     * so we know when all of its initial documents have arrived
+     */
+    @Override
+    public int subscribe(final String subscriptionName, Object[] params) {
+        return mDDP.subscribe(subscriptionName, params, new DDPListener() {
+            @Override
+            public void onReady(String callId) {
+                onSubscriptionReady(subscriptionName);
+            }
+        });
+    }
+
+    /**
+     * Subscribes to just the parties around the map's viewport.  The
+     * subscription covers a padded area and is only replaced when the
+     * viewport leaves that area (or is much smaller than it).  The old
+     * subscription is kept until the new one is ready so parties in both
+     * don't disappear and come back.
+     * @param visible bounds of the map's visible region
+     */
+    public synchronized void subscribeToPartiesIn(ViewportBounds visible) {
+        if ((mPartiesBounds != null) && mPartiesBounds.contains(visible)
+                && (visible.getLatSpan() * VIEWPORT_SHRINK_RATIO >= mPartiesBounds.getLatSpan())) {
+            // still inside what we've subscribed to
+            return;
+        }
+        if (mPendingPartiesSubId != null) {
+            // superseded before it was ready; the active one still covers the old area
+            mDDP.unsubscribe(mPendingPartiesSubId);
+        }
+        mPartiesBounds = visible.pad(VIEWPORT_PADDING);
+        final String subId = Integer.toString(mDDP.subscribe("parties",
+                new Object[] { mPartiesBounds.toParams() }, new DDPListener() {
+                    @Override
+                    public void onReady(String callId) {
+                        onPartiesViewportReady(callId);
+                    }
+                }));
+        mPendingPartiesSubId = subId;
+    }
+
+    /**
+     * Called when a viewport subscription to parties has sent all its
+     * documents, so the subscription it replaces can be dropped
+     * @param subId ID of subscription that's ready
+     */
+    private void onPartiesViewportReady(String subId) {
+        synchronized (this) {
+            if (!subId.equals(mPendingPartiesSubId)) {
+                // superseded or dropped by a disconnect
+                return;
+            }
+            if (mActivePartiesSubId != null) {
+                // server removes parties that were only in the old area
+                mDDP.unsubscribe(mActivePartiesSubId);
+            }
+            mActivePartiesSubId = subId;
+            mPendingPartiesSubId = null;
+        }
+        onSubscriptionReady("parties");
+    }
+
+    /**
+     * Called when a subscription has sent all its initial documents
+     * @param subscriptionName name of subscription
+     */
+    protected void onSubscriptionReady(String subscriptionName) {
+        if (subscriptionName.equals("parties")) {
+            synchronized (mPartiesReadyLock) {
+                mPartiesReady = true;
+                // anything the server didn't re-send is gone from the server
+                for (String docId : mUnconfirmedPartyIds) {
+                    mUnconfirmedPartyIds.remove(docId);
+                    mPartyCollection.remove(docId);
+                    queueSubscriptionChange("parties", DdpMessageType.REMOVED, docId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets last map camera position so it can be restored on the next start
+     * @param camera map camera position
+     */
+    public void setLastCameraPosition(CameraPosition camera) {
+        mLastCameraPosition = camera;
+    }
+
+    /**
+     * Gets last map camera position (from the snapshot after a cold start)
+     * @return camera position or null if there isn't one
+     */
+    public CameraPosition getLastCameraPosition() {
+        return mLastCameraPosition;
+    }
+
+    /**
+     * Loads the parties saved by saveSnapshot so the map has something to
+     * show before the DDP connection is up.  This runs in the background
+     * and adds parties as they are read; live data replaces them.
+     * If the persistent store is enabled, parties come from the store and
+     * only the camera position comes from the snapshot file.
+     */
+    public void loadSnapshot() {
+        final File file = new File(MyApplication.getAppContext().getFilesDir(),
+                SNAPSHOT_FILE);
+        final PartyStore store = mPartyStore;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                PartySnapshot.Callback callback = new PartySnapshot.Callback() {
+                    @Override
+                    public void onCameraPosition(CameraPosition camera) {
+                        if (mLastCameraPosition == null) {
+                            mLastCameraPosition = camera;
+                        }
+                    }
+                    @Override
+                    public boolean onParty(String partyId, Map<String, Object> fields) {
+                        synchronized (mPartiesReadyLock) {
+                            if (mPartiesReady) {
+                                // live data is all here, so we're too late
+                                return false;
+                            }
+                            addSnapshotParty(partyId, fields);
+                        }
+                        return true;
+                    }
+                };
+                try {
+                    if (store != null) {
+                        store.loadAll(callback);
+                    }
+                    PartySnapshot.read(file, callback);
+                } catch (IOException e) {
+                    Log.w(TAG, "Couldn't load parties snapshot", e);
+                } catch (RuntimeException e) {
+                    // corrupt snapshot, so just wait for live data
+                    Log.w(TAG, "Bad parties snapshot", e);
+                }
+            }
+        }, "PartySnapshotLoader").start();
+    }
+
+    /**
+     * Adds a party from the snapshot unless live data already has it
+     * (call with mPartiesReadyLock held)
+     * @param docId Meteor object ID of party
+     * @param fields party fields
+     */
+    private void addSnapshotParty(String docId, Map<String, Object> fields) {
+        if (mParties.containsKey(docId)) {
+            return;
+        }
+        // mark it first so a live add that sneaks in can unmark it
+        mUnconfirmedPartyIds.add(docId);
+        // keep its RSVPs out of the shared user RSVP index until we know
+        // it didn't lose a race with the live copy
+        Party party = new Party(docId, fields, false);
+        if (mParties.putIfAbsent(docId, party) != null) {
+            mUnconfirmedPartyIds.remove(docId);
+            return;
+        }
+        party.indexRsvps();
+        mPartyIndex.put(docId, party.getLatitude(), party.getLongitude());
+        queueSubscriptionChange("parties", DdpMessageType.ADDED, docId);
+    }
+
+    /**
+     * Saves the parties and last camera position to a snapshot file in
+     * the background so the next cold start can show them right away.
+     * Saves are written one at a time, and a save that hasn't started
+     * yet covers any more that are asked for meanwhile.
+     */
+    public void saveSnapshot() {
+        mIoHandler.removeCallbacks(mSaveSnapshot);
+        mIoHandler.post(mSaveSnapshot);
+    }
+
+    /**
+     * Writes the snapshot file (runs on the I/O thread)
+     */
+    private void writeSnapshot() {
+        File file = new File(MyApplication.getAppContext().getFilesDir(), SNAPSHOT_FILE);
+        try {
+            // parties are already saved if the store is enabled
+            Collection<Party> parties = (mPartyStore != null)
+                    ? Collections.<Party>emptyList() : mParties.values();
+            PartySnapshot.write(file, parties, mLastCameraPosition);
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't save parties snapshot", e);
+        }
+    }
+
+    /**
+     * Sets how long subscription changes are collected before they're
+     * broadcast as one batch
+     * @param batchWindowMs batch window in milliseconds
+     */
+    public void setBatchWindow(long batchWindowMs) {
+        mBatchWindowMs = batchWindowMs;
+    }
+
+    /**
+     * Sends all pending subscription changes to listeners as one batch
+     * (runs on the UI thread)
+     */
+    private void flushSubscriptionChanges() {
+        long startNanos = System.nanoTime();
+        List<SubscriptionChange> changes = mPendingChanges.drain();
+        if (changes.isEmpty()) {
+            return;
+        }
+        for (MyDDPEventListener listener : mListeners) {
+            listener.onSubscriptionBatch(changes);
+        }
+        // split the batch's broadcast time evenly across its changes; it's
+        // only charged per collection since coalescing changes the types
+        long nanosPerChange = (System.nanoTime() - startNanos) / changes.size();
+        for (SubscriptionChange change : changes) {
+            mMessageStats.recordFlush(change.getCollectionName(), nanosPerChange);
+        }
+    }
+
+    /**
+     * Gets DDP message counters per collection and change type.  Byte
+     * counts are only measured while stats logging is on.
+     * @return message stats
+     */
+    public DdpMessageStats getMessageStats() {
+        return mMessageStats;
+    }
+
+    /**
+     * Logs message counters and rates every interval until stopped.  Message
+     * sizes are only estimated while this is on (debug builds turn it on).
+     * @param intervalMs how often to log, or 0 to stop logging
+     */
+    public void setMessageStatsLogInterval(long intervalMs) {
+        mUiHandler.removeCallbacks(mLogMessageStats);
+        mStatsLogIntervalMs = intervalMs;
+        mMeasureMessageBytes = (intervalMs > 0);
+        mLastLoggedStats = mMessageStats.snapshot();
+        mLastLoggedFlushNanos = mMessageStats.getFlushNanos();
+        if (intervalMs > 0) {
+            mUiHandler.postDelayed(mLogMessageStats, intervalMs);
+        }
+    }
+
+    /**
+     * Logs one line per collection/change type, then one line per
+     * collection with its broadcast time, with what changed since the
+     * last log lines
+     */
+    private void logMessageStats() {
+        List<DdpMessageStats.Counter> counters = mMessageStats.snapshot();
+        Map<String, DdpMessageStats.Counter> lastCounters =
+                new HashMap<String, DdpMessageStats.Counter>();
+        for (DdpMessageStats.Counter counter : mLastLoggedStats) {
+            lastCounters.put(counter.getCollection() + "/" + counter.getChangeType(), counter);
+        }
+        double seconds = mStatsLogIntervalMs / 1000.0;
+        for (DdpMessageStats.Counter counter : counters) {
+            String key = counter.getCollection() + "/" + counter.getChangeType();
+            DdpMessageStats.Counter last = lastCounters.get(key);
+            long messages = counter.getMessages() - ((last != null) ? last.getMessages() : 0);
+            long bytes = counter.getBytes() - ((last != null) ? last.getBytes() : 0);
+            long wrapNanos = counter.getWrapNanos() - ((last != null) ? last.getWrapNanos() : 0);
+            long broadcastNanos = counter.getBroadcastNanos()
+                    - ((last != null) ? last.getBroadcastNanos() : 0);
+            if (messages == 0) {
+                continue;
+            }
+            Log.i(TAG, String.format("ddp %s: %d msgs (%.1f/s) %d bytes (%.0f B/s) wrap %dus queue %dus",
+                    key, messages, messages / seconds, bytes, bytes / seconds,
+                    wrapNanos / 1000, broadcastNanos / 1000));
+        }
+        mLastLoggedStats = counters;
+        Map<String, Long> flushNanos = mMessageStats.getFlushNanos();
+        for (Map.Entry<String, Long> entry : flushNanos.entrySet()) {
+            Long last = mLastLoggedFlushNanos.get(entry.getKey());
+            long nanos = entry.getValue() - ((last != null) ? last : 0);
+            if (nanos > 0) {
+                Log.i(TAG, String.format("ddp %s: bcast %dus", entry.getKey(), nanos / 1000));
+            }
+        }
+        mLastLoggedFlushNanos = flushNanos;
     }
     
     ////// Meteor methods on the server for this application
     /**
-     * Handles method to create a new party on the server
+     * Handles method to create a new party on the server.  Like Meteor's
+     * client stubs, we pick the party's ID (the server's createParty takes
+     * an optional _id), so the party is shown right away under the ID the
+     * server will use, and a call replayed after a reconnect can't create
+     * a second party.
      * @param title Title of party
      * @param description Description of party
      * @param lat GPS latitude of party
      * @param lon GPS longitude of party
      * @param isPublic whether party is public
+     * @return call whose result is the new party's ID
      */
-    public void createParty(String title, String description, double lat,
-            double lon, boolean isPublic) {
+    public MethodCall<String> createParty(String title, String description, final double lat,
+            final double lon, boolean isPublic) {
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put("title", title);
+        options.put("description", description);
+        options.put("lat", lat);
+        options.put("lon", lon);
+        options.put("public", isPublic);
+        final Map<String, Object> fields = new HashMap<String, Object>(options);
+        fields.put("owner", getUserId());
+        fields.put("rsvps", new ArrayList<Map<String, String>>());
+        final String partyId = newDocumentId();
+        options.put("_id", partyId);
+        final Party party = new Party(partyId, fields);
+        MethodCall<String> call = newCall("createParty", String.class);
+        callWithSimulation(call, new Object[] { options }, new MethodSimulation() {
+            @Override
+            public void apply() {
+                if (mParties.putIfAbsent(partyId, party) == null) {
+                    mPartyIndex.put(partyId, lat, lon);
+                    queueSubscriptionChange("parties", DdpMessageType.ADDED, partyId);
+                }
+            }
+            @Override
+            public void rollback() {
+                removeLocalParty();
+            }
+            @Override
+            public void confirm() {
+                // server's copy has normally replaced ours by now; if it
+                // wasn't published to us, don't keep showing ours
+                removeLocalParty();
+            }
+            private void removeLocalParty() {
+                // leave the server's copy alone if it has arrived
+                if (mParties.remove(partyId, party)) {
+                    party.releaseRsvps();
+                    mPartyIndex.remove(partyId);
+                    queueSubscriptionChange("parties", DdpMessageType.REMOVED, partyId);
+                }
+            }
+        });
+        return call;
     }
 
     /**
      * Used to invite a user to the party if it's not public
      * @param partyId Meteor object ID of party
      * @param userId Meteor object ID of user to invite
+     * @return call that finishes when the invite is saved
      */
-    public void invite(String partyId, String userId) {
+    public MethodCall<Void> invite(final String partyId, final String userId) {
+        final Party party = mParties.get(partyId);
+        MethodCall<Void> call = newCall("invite", Void.class);
+        callWithSimulation(call, new Object[] { partyId, userId }, new MethodSimulation() {
+            @Override
+            public void apply() {
+                if (party != null) {
+                    party.simulateInvite(userId);
+                    queueSubscriptionChange("parties", DdpMessageType.UPDATED, partyId);
+                }
+            }
+            @Override
+            public void rollback() {
+                confirm();
+            }
+            @Override
+            public void confirm() {
+                if (party != null) {
+                    party.clearPendingInvite(userId);
+                    queueSubscriptionChange("parties", DdpMessageType.UPDATED, partyId);
+                }
+            }
+        });
+        return call;
     }
 
     /**
-     * Handles RSVP method call
+     * Handles RSVP method call.  The RSVP shows up in the party right away
+     * and is rolled back if the server rejects it.  Only one RSVP call is
+     * in flight per party; taps made while one is in flight collapse into
+     * a single call with the latest value; the calls of taps collapsed
+     * that way are cancelled.
      * @param partyId Meteor object ID of party
      * @param yesNoMaybe "yes", "no" or "maybe" RSVP response for current user
+     * @return call that finishes when the RSVP is saved
      */
-    public void rsvp(String partyId, String yesNoMaybe) {
+    public MethodCall<Void> rsvp(String partyId, String yesNoMaybe) {
+        PendingRsvp rsvp = new PendingRsvp();
+        rsvp.value = yesNoMaybe;
+        rsvp.call = newCall("rsvp", Void.class);
+        Party party = mParties.get(partyId);
+        if (party != null) {
+            // show every tap right away even if its call gets collapsed
+            rsvp.seq = party.simulateRsvp(yesNoMaybe);
+            queueSubscriptionChange("parties", DdpMessageType.UPDATED, partyId);
+        }
+        if (!mCanSendCalls) {
+            // offline, so log it now so it survives a restart; logged calls
+            // are replayed in order so the last tap still wins
+            mRsvpCalls.discardWaiting(partyId);
+            logRsvp(partyId, rsvp, false);
+        } else if (mRsvpCalls.offer(partyId, rsvp)) {
+            logRsvp(partyId, rsvp, true);
+        } else {
+            // waiting behind the call in flight; log it held so it isn't
+            // lost if we die first (a later tap cancels it, which drops it
+            // from the log again)
+            mCallLog.append(rsvp.call.getKey(), "rsvp", rsvpArgs(partyId, rsvp), true);
+        }
+        return rsvp.call;
+    }
+
+    /**
+     * Builds the arguments of an RSVP call
+     * @param partyId Meteor object ID of party
+     * @param rsvp RSVP to send
+     * @return method arguments
+     */
+    private static Object[] rsvpArgs(String partyId, PendingRsvp rsvp) {
         Object[] methodArgs = new Object[2];
         methodArgs[0] = partyId;
-        methodArgs[1] = yesNoMaybe;
-        mDDP.call("rsvp", methodArgs, new DDPListener() {
+        methodArgs[1] = rsvp.value;
+        return methodArgs;
+    }
+
+    /**
+     * Logs and sends an RSVP call.  If it went through the coalescing
+     * queue, the latest RSVP queued for the same party (if any) is sent
+     * when it finishes.
+     * @param partyId Meteor object ID of party
+     * @param rsvp RSVP to send
+     * @param isQueued whether call is tracked by the coalescing queue
+     */
+    private void logRsvp(final String partyId, final PendingRsvp rsvp,
+            final boolean isQueued) {
+        if (rsvp.call.isCancelled()) {
+            // cancelled while it waited behind the call in flight
+            finishRsvp(partyId, rsvp, isQueued);
+            return;
+        }
+        callWithSimulation(rsvp.call, rsvpArgs(partyId, rsvp), new MethodSimulation() {
+            @Override
+            public void apply() {
+                // already applied when the RSVP was tapped
+            }
+            @Override
+            public void rollback() {
+                confirm();
+            }
+            @Override
+            public void confirm() {
+                finishRsvp(partyId, rsvp, isQueued);
+            }
+        });
+    }
+
+    /**
+     * Clears a finished RSVP from its party and sends the next RSVP
+     * queued for the party (if any)
+     * @param partyId Meteor object ID of party
+     * @param rsvp RSVP that finished
+     * @param isQueued whether call is tracked by the coalescing queue
+     */
+    private void finishRsvp(String partyId, PendingRsvp rsvp, boolean isQueued) {
+        Party party = mParties.get(partyId);
+        if (party != null) {
+            // server's RSVP list has our RSVP (or doesn't if rejected)
+            // unless a newer RSVP is still on its way
+            party.clearPendingRsvp(rsvp.seq);
+            queueSubscriptionChange("parties", DdpMessageType.UPDATED, partyId);
+        }
+        if (isQueued) {
+            PendingRsvp next = mRsvpCalls.complete(partyId);
+            if (next != null) {
+                logRsvp(partyId, next, true);
+            }
+        }
+    }
+
+    /**
+     * Picks a new document ID the same way Meteor's Random.id() does
+     * @return random 17 character ID
+     */
+    private String newDocumentId() {
+        char[] id = new char[DOC_ID_LENGTH];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = DOC_ID_CHARS.charAt(mRandom.nextInt(DOC_ID_CHARS.length()));
+        }
+        return new String(id);
+    }
+
+    /**
+     * Sets how long method calls made from now on wait for an answer
+     * once they're sent
+     * @param timeoutMs timeout in milliseconds
+     */
+    public void setMethodTimeout(long timeoutMs) {
+        mMethodTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Makes the completion object for a new method call
+     * @param methodName name of Meteor method
+     * @param resultType type of method's result (Void.class for none)
+     * @return call to pass to callWithSimulation
+     */
+    private <T> MethodCall<T> newCall(String methodName, Class<T> resultType) {
+        final String key = UUID.randomUUID().toString();
+        MethodCall<T> call = new MethodCall<T>(key, methodName, resultType,
+                mUiExecutor, mMethodTimeoutMs);
+        call.setOnCancel(new Runnable() {
+            @Override
+            public void run() {
+                withdrawCall(key);
+            }
+        });
+        call.addListener(new MethodCall.Listener<T>() {
+            @Override
+            public void onComplete(MethodCall<T> call) {
+                mCalls.remove(key);
+            }
+        });
+        return call;
+    }
+
+    /**
+     * Calls a Meteor method, applying its simulation locally first.  The
+     * simulation is rolled back if the server returns an error and
+     * confirmed once the server says the method's writes have been sent.
+     * The call is saved in the method call log so it's sent when we're
+     * logged in, even if that's after the app restarts.
+     * @param call completion object of call
+     * @param methodArgs method arguments
+     * @param simulation local simulation of method
+     */
+    private void callWithSimulation(MethodCall<?> call, Object[] methodArgs,
+            MethodSimulation simulation) {
+        String key = call.getKey();
+        simulation.apply();
+        mSimulations.put(key, simulation);
+        mCalls.put(key, call);
+        if (!mCallLog.release(key)) {
+            mCallLog.append(key, call.getMethodName(), methodArgs, false);
+        }
+        sendPendingCalls();
+    }
+
+    /**
+     * Sends logged calls that haven't been sent on this connection yet.
+     * They're sent in order without waiting for each reply; the server
+     * runs a connection's method calls in the order they're sent.
+     */
+    private void sendPendingCalls() {
+        if (!mCanSendCalls) {
+            // every method in this app needs a logged in user
+            return;
+        }
+        synchronized (mCallLog) {
+            for (MethodCallLog.Call call : mCallLog.takeUnsent()) {
+                sendCall(call);
+            }
+        }
+    }
+
+    /**
+     * Sends a logged call, marking it done in the log when it's answered
+     * @param call call to send
+     */
+    private void sendCall(final MethodCallLog.Call call) {
+        // null for calls left over from before the app restarted
+        final MethodCall<?> methodCall = mCalls.get(call.getKey());
+        final MethodLatencyStats stats = getMethodStats(call.getMethod());
+        final long sentAt = System.nanoTime();
+        final SentCall sent = new SentCall(call.getKey(), methodCall, stats);
+        SentCall oldSent = mSentCalls.put(call.getKey(), sent);
+        if (oldSent != null) {
+            oldSent.abandon();
+        }
+        stats.onSent();
+        mDDP.call(call.getMethod(), call.getArgs(), new DDPListener() {
             @Override
             @SuppressWarnings("unchecked")
             public void onResult(Map<String, Object> jsonFields) {
-                if (jsonFields.containsKey("result")) {
-                    Map<String, Object> result = (Map<String, Object>) jsonFields
-                            .get(DdpMessageField.RESULT);
-                    Intent broadcastIntent = new Intent();
-                    broadcastIntent.setAction(MESSAGE_METHODRESUlT);
-                    broadcastIntent.putExtra(MESSAGE_EXTRA_RESULT,
-                            mGSON.toJson(result));
-                    LocalBroadcastManager.getInstance(
-                            MyApplication.getAppContext()).sendBroadcast(
-                            broadcastIntent);
-                    // broadcast a msg that RSVP was successful so UI can
-                    // update?
-                }
+                mUiHandler.removeCallbacks(sent);
+                mSentCalls.remove(call.getKey(), sent);
+                stats.onResult((System.nanoTime() - sentAt) / 1000,
+                        jsonFields.containsKey("error"), sent.outOfFlight.getAndSet(true));
+                mCallLog.complete(call.getKey());
                 if (jsonFields.containsKey("error")) {
                     Map<String, Object> error = (Map<String, Object>) jsonFields
                             .get(DdpMessageField.ERROR);
-                    broadcastDDPError((String) error.get("message"));
-                    // should this be an RSVP error result instead?
+                    String message = (String) error.get("message");
+                    finishSimulation(call.getKey(), false);
+                    if (methodCall != null) {
+                        methodCall.fail(message);
+                    }
+                    dispatchMethodResult(call.getMethod(), null, message);
+                } else {
+                    Object result = jsonFields.get(DdpMessageField.RESULT);
+                    if (methodCall != null) {
+                        methodCall.onResult(result);
+                    }
+                    dispatchMethodResult(call.getMethod(), result, null);
+                }
+            }
+
+            @Override
+            public void onUpdated(String callId) {
+                stats.onUpdated((System.nanoTime() - sentAt) / 1000);
+                finishSimulation(call.getKey(), true);
+                if (methodCall != null) {
+                    methodCall.onUpdated();
+                }
+            }
+        });
+        mUiHandler.postDelayed(sent,
+                (methodCall != null) ? methodCall.getTimeoutMs() : mMethodTimeoutMs);
+    }
+
+    /**
+     * One send of a logged call on the current connection.  Runs as the
+     * send's timeout; whichever of result/timeout/abandon happens first
+     * takes the send out of flight.
+     */
+    private class SentCall implements Runnable {
+        private final String mKey;
+        /** null for calls left over from before the app restarted */
+        private final MethodCall<?> mMethodCall;
+        private final MethodLatencyStats mStats;
+        final AtomicBoolean outOfFlight = new AtomicBoolean();
+
+        SentCall(String key, MethodCall<?> methodCall, MethodLatencyStats stats) {
+            mKey = key;
+            mMethodCall = methodCall;
+            mStats = stats;
+        }
+
+        @Override
+        public void run() {
+            mSentCalls.remove(mKey, this);
+            if (!outOfFlight.getAndSet(true)) {
+                mStats.onTimeout();
+                // don't leave the simulated change on screen forever; if
+                // the server did apply it, the subscription brings it back
+                finishSimulation(mKey, false);
+                if (mMethodCall != null) {
+                    mMethodCall.timeOut();
+                }
+            }
+        }
+
+        /**
+         * Stops the timeout of a send that will never be answered because
+         * its connection dropped; the call itself is still pending
+         */
+        void abandon() {
+            mUiHandler.removeCallbacks(this);
+            if (!outOfFlight.getAndSet(true)) {
+                mStats.onAbandoned();
+            }
+        }
+    }
+
+    /**
+     * Takes every send on the dropped connection out of flight without
+     * counting it as timed out
+     */
+    private void abandonSentCalls() {
+        for (SentCall sent : mSentCalls.values()) {
+            if (mSentCalls.remove(sent.mKey, sent)) {
+                sent.abandon();
+            }
+        }
+    }
+
+    /**
+     * Hands a method call's result or error to listeners on the UI thread
+     * @param methodName name of Meteor method
+     * @param result decoded result (null if none)
+     * @param errorMessage error message (null if the call worked)
+     */
+    private void dispatchMethodResult(final String methodName, final Object result,
+            final String errorMessage) {
+        mUiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (MyDDPEventListener listener : mListeners) {
+                    if (errorMessage != null) {
+                        listener.onMethodError(methodName, errorMessage);
+                    } else {
+                        listener.onMethodResult(methodName, result);
+                    }
                 }
             }
         });
     }
+
+    /**
+     * Gets latency stats for a Meteor method, creating them if needed
+     * @param method name of Meteor method
+     * @return method's stats
+     */
+    public MethodLatencyStats getMethodStats(String method) {
+        MethodLatencyStats stats = mMethodStats.get(method);
+        if (stats == null) {
+            stats = new MethodLatencyStats(method);
+            MethodLatencyStats oldStats = mMethodStats.putIfAbsent(method, stats);
+            if (oldStats != null) {
+                stats = oldStats;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Gets latency stats of every Meteor method called so far
+     * @return method name to stats
+     */
+    public Map<String, MethodLatencyStats> getAllMethodStats() {
+        return Collections.unmodifiableMap(mMethodStats);
+    }
+
+    /**
+     * Withdraws a cancelled call if it hasn't been sent yet, undoing its
+     * simulation; a call that's been sent is left for the server to answer
+     * @param key idempotency key of call
+     */
+    private void withdrawCall(String key) {
+        if (mCallLog.cancelUnsent(key)) {
+            finishSimulation(key, false);
+        }
+    }
+
+    /**
+     * Confirms or rolls back a call's simulation (only once).  Simulations
+     * are applied on the UI thread, so they're finished there too even
+     * though replies arrive on the websocket thread.
+     * @param key idempotency key of call
+     * @param confirmed true to confirm, false to roll back
+     */
+    private void finishSimulation(String key, final boolean confirmed) {
+        final MethodSimulation simulation = mSimulations.remove(key);
+        if (simulation == null) {
+            // already finished, or call was made before the app restarted
+            return;
+        }
+        mUiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (confirmed) {
+                    simulation.confirm();
+                } else {
+                    simulation.rollback();
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets method calls waiting to be sent or answered
+     * @return pending calls in the order they were made
+     */
+    public List<MethodCallLog.Call> getPendingCalls() {
+        return mCallLog.getPending();
+    }
 }
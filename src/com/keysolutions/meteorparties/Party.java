@@ -17,10 +17,9 @@
 package com.keysolutions.meteorparties;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-
-import com.google.android.gms.maps.model.BitmapDescriptorFactory;
-import com.google.android.gms.maps.model.Marker;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Party object that is core object for application
@@ -34,6 +33,18 @@ public class Party {
     private Map<String, Object> mFields;
     /** This is our object ID */
     private String mDocId;
+    /** Title of party (decoded from fields map when it changes) */
+    private String mTitle;
+    /** Description of party */
+    private String mDescription;
+    /** Meteor user ID of party's creator */
+    private String mOwner;
+    /** GPS latitude of party */
+    private double mLatitude;
+    /** GPS longitude of party */
+    private double mLongitude;
+    /** Whether party is public */
+    private boolean mIsPublic;
     /** Whether current user is the owner of this party */
     private boolean mIsOwner;
     /**
@@ -43,23 +54,30 @@ public class Party {
     private String mMyRsvp;
     /** This is the number of people who RSVP'd Yes */
     private int mAttendees;
+    /** Per-user RSVPs and yes/no/maybe counts, updated as RSVPs change */
+    private RsvpIndex mRsvpIndex;
+    /** Passes RSVP changes on to the user to party RSVP index */
+    private final RsvpIndex.Listener mRsvpListener = new RsvpIndex.Listener() {
+        @Override
+        public void onRsvpChanged(String userId, String oldRsvp, String newRsvp) {
+            if (mIsRsvpsIndexed) {
+                MyDDPState.getInstance().getUserRsvpIndex().put(mDocId, userId, newRsvp);
+            }
+        }
+    };
+    /** whether RSVP changes are passed on to the user to party RSVP index */
+    private volatile boolean mIsRsvpsIndexed;
     /** Last state of current user ID so we can figure out if we need to refresh fields */
     private String mLastMyUserId;
-    /** This is the Google Maps marker associated w/ this party */
-    private Marker mMarker;
-    /** This is a color map used to map the #attendees/10 to a color */
-    private static final float colorMap[] = {
-        BitmapDescriptorFactory.HUE_BLUE,  
-        BitmapDescriptorFactory.HUE_AZURE,  
-        BitmapDescriptorFactory.HUE_CYAN,   
-        BitmapDescriptorFactory.HUE_GREEN,
-        BitmapDescriptorFactory.HUE_YELLOW, 
-        BitmapDescriptorFactory.HUE_ORANGE,
-        BitmapDescriptorFactory.HUE_MAGENTA,     
-        BitmapDescriptorFactory.HUE_ROSE,    
-        BitmapDescriptorFactory.HUE_RED, 
-        BitmapDescriptorFactory.HUE_VIOLET,  
-    };
+    /**
+     * RSVP current user sent that the server hasn't confirmed yet (null if
+     * none); set on the UI thread but read when DDP refreshes fields
+     */
+    private volatile String mPendingRsvp;
+    /** sequence number of latest simulated RSVP so older calls don't clear it (UI thread only) */
+    private int mPendingRsvpSeq;
+    /** users invited locally that the server hasn't confirmed yet */
+    private final List<String> mPendingInvites = new CopyOnWriteArrayList<String>();
     
     /**
      * Gets Meteor object ID
@@ -73,14 +91,14 @@ public class Party {
      * @return title of party
      */
     public String getTitle() {
-        return ((String) mFields.get("title"));
+        return mTitle;
     }
     /**
      * Gets description for party
      * @return description of party
      */
     public String getDescription() {
-        return ((String) mFields.get("description"));
+        return mDescription;
     }
     /**
      * Gets #attendees (people who rsvp'd yes) for party
@@ -89,6 +107,28 @@ public class Party {
     public int getAttendees() {
         return mAttendees;
     }
+    /**
+     * Gets #people who RSVP'd no for party
+     * @return #declined for party
+     */
+    public int getNoCount() {
+        return mRsvpIndex.getNoCount() + getPendingRsvpDelta(RsvpIndex.NO);
+    }
+    /**
+     * Gets #people who RSVP'd maybe for party
+     * @return #maybes for party
+     */
+    public int getMaybeCount() {
+        return mRsvpIndex.getMaybeCount() + getPendingRsvpDelta(RsvpIndex.MAYBE);
+    }
+    /**
+     * Gets a user's RSVP for party
+     * @param userId Meteor user ID
+     * @return null, "yes", "no", or "maybe"
+     */
+    public String getRsvp(String userId) {
+        return mRsvpIndex.get(userId);
+    }
     /**
      * RSVP array of <userID,rsvp>
      * @return array of RSVPs
@@ -97,6 +137,24 @@ public class Party {
     public ArrayList<Map<String, String>> getRsvps() {
         return ((ArrayList<Map<String, String>>) mFields.get("rsvps"));
     }
+    /**
+     * Gets users invited to party, including invites not confirmed yet
+     * @return Meteor user IDs of invited users
+     */
+    @SuppressWarnings("unchecked")
+    public ArrayList<String> getInvited() {
+        ArrayList<String> invited = new ArrayList<String>();
+        ArrayList<String> serverInvited = (ArrayList<String>) mFields.get("invited");
+        if (serverInvited != null) {
+            invited.addAll(serverInvited);
+        }
+        for (String userId : mPendingInvites) {
+            if (!invited.contains(userId)) {
+                invited.add(userId);
+            }
+        }
+        return invited;
+    }
     /**
      * Gets value for MyRSVP
      * @return
@@ -110,21 +168,28 @@ public class Party {
      * @return latitude
      */
     public double getLatitude() {
-        return ((Double) mFields.get("lat"));
+        return mLatitude;
     }
     /**
      * Gets GPS longitude for party
      * @return longitude
      */
     public double getLongitude() {
-        return ((Double) mFields.get("lon"));
+        return mLongitude;
     }
     /**
      * Whether party is public
      * @return true if public
      */
     public boolean isPublic() {
-        return ((Boolean) mFields.get("public"));
+        return mIsPublic;
+    }
+    /**
+     * Gets user ID of party's creator
+     * @return Meteor user ID of owner
+     */
+    public String getOwner() {
+        return mOwner;
     }
     /**
      * Whether current user is party's owner
@@ -142,9 +207,22 @@ public class Party {
      * @param fields field/value map reference
      */
     public Party(String docId, Map<String, Object> fields) {
+        this(docId, fields, true);
+    }
+
+    /**
+     * Constructor for Party object that can be kept out of the user to
+     * party RSVP index until it's known to be the party's live copy
+     * @param docId Meteor's object ID for this Party
+     * @param fields field/value map reference
+     * @param indexRsvps false to leave the user RSVP index alone until
+     *        indexRsvps is called
+     */
+    public Party(String docId, Map<String, Object> fields, boolean indexRsvps) {
         this.mFields = fields;
         this.mDocId = docId;
-        mMarker = null;
+        mIsRsvpsIndexed = indexRsvps;
+        mRsvpIndex = new RsvpIndex();
         refreshFields();
     }
     
@@ -153,7 +231,7 @@ public class Party {
      */
     private void refreshFieldsIfIdChanged() {
         if (hasUserIdChanged()) {
-            refreshFields();
+            refreshUserFields();
         }
     }
     /**
@@ -162,44 +240,174 @@ public class Party {
      */
     private boolean hasUserIdChanged() {
         String myUserId = MyDDPState.getInstance().getUserId();
-        if (((myUserId == null) && (mLastMyUserId != null))
-                || ((myUserId != null) && (mLastMyUserId == null))
-                || (!myUserId.equals(mLastMyUserId))) {
-            return true;
+        if (myUserId == null) {
+            return (mLastMyUserId != null);
         }
-        return false;
+        return !myUserId.equals(mLastMyUserId);
     }
     
     /**
      * This recalculates any internal fields that would take a long time
      * to calculate/get if we had to reparse the the fields map.
-     * Currently only gets the myRsvp and attendees and isOwner fields.
+     * The title/description/owner/location/public fields are decoded
+     * here once so getters don't have to do map lookups and unboxing.
      * NOTE: This also needs to be called when the underlying data is changed by DDP.
+     * @return true if any of the decoded fields changed
      */
-    public void refreshFields() {
+    public boolean refreshFields() {
+        String title = (String) mFields.get("title");
+        String description = (String) mFields.get("description");
+        String owner = (String) mFields.get("owner");
+        double latitude = getDouble("lat");
+        double longitude = getDouble("lon");
+        Object isPublicField = mFields.get("public");
+        boolean isPublic = (isPublicField != null) && ((Boolean) isPublicField);
+        boolean changed = !equals(title, mTitle) || !equals(description, mDescription)
+                || !equals(owner, mOwner) || (latitude != mLatitude)
+                || (longitude != mLongitude) || (isPublic != mIsPublic);
+        mTitle = title;
+        mDescription = description;
+        mOwner = owner;
+        mLatitude = latitude;
+        mLongitude = longitude;
+        mIsPublic = isPublic;
+        // only apply the RSVPs that were added/changed/removed
+        if (mRsvpIndex.update(getRsvps(), mRsvpListener)) {
+            changed = true;
+        }
+        refreshUserFields();
+        return changed;
+    }
+
+    /**
+     * Points this party at a new fields map, e.g. when DDP re-sends the
+     * document after a reconnect, so the existing wrapper can be kept
+     * @param fields field/value map reference
+     * @return true if any of the decoded fields changed
+     */
+    public boolean setFields(Map<String, Object> fields) {
+        mFields = fields;
+        return refreshFields();
+    }
+
+    private static boolean equals(String a, String b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
+    /**
+     * Shows an RSVP by the current user before the server confirms it
+     * @param rsvp "yes", "no" or "maybe"
+     * @return sequence number to pass to clearPendingRsvp
+     */
+    public int simulateRsvp(String rsvp) {
+        mPendingRsvp = rsvp;
+        mPendingRsvpSeq++;
+        refreshUserFields();
+        return mPendingRsvpSeq;
+    }
+
+    /**
+     * Drops a simulated RSVP (confirmed or rejected by the server) unless
+     * a newer one has been simulated since
+     * @param seq sequence number from simulateRsvp
+     */
+    public void clearPendingRsvp(int seq) {
+        if ((seq == mPendingRsvpSeq) && (mPendingRsvp != null)) {
+            mPendingRsvp = null;
+            refreshUserFields();
+        }
+    }
+
+    /**
+     * Whether current user's RSVP is waiting for the server
+     * @return true if an RSVP is pending
+     */
+    public boolean hasPendingRsvp() {
+        return mPendingRsvp != null;
+    }
+
+    /**
+     * Shows an invite before the server confirms it
+     * @param userId Meteor user ID of invited user
+     */
+    public void simulateInvite(String userId) {
+        mPendingInvites.add(userId);
+    }
+
+    /**
+     * Drops a simulated invite (confirmed or rejected by the server)
+     * @param userId Meteor user ID of invited user
+     */
+    public void clearPendingInvite(String userId) {
+        mPendingInvites.remove(userId);
+    }
+
+    /**
+     * Adds this party's RSVPs to the user RSVP index if it was
+     * constructed without them
+     */
+    public void indexRsvps() {
+        if (mIsRsvpsIndexed) {
+            return;
+        }
+        mIsRsvpsIndexed = true;
+        mRsvpIndex.replay(mRsvpListener);
+    }
+
+    /**
+     * Removes this party's RSVPs from the user RSVP index.
+     * NOTE: This needs to be called when the party is removed by DDP.
+     */
+    public void releaseRsvps() {
+        mRsvpIndex.update(null, mRsvpListener);
+        refreshUserFields();
+    }
+
+    /**
+     * Gets a numeric field from the fields map
+     * @param fieldName name of field
+     * @return field value or 0 if it's missing
+     */
+    private double getDouble(String fieldName) {
+        Object value = mFields.get(fieldName);
+        if (value == null) {
+            return 0;
+        }
+        return ((Number) value).doubleValue();
+    }
+
+    /**
+     * Recalculates the myRsvp and attendees and isOwner fields
+     * from the RSVP index
+     */
+    private void refreshUserFields() {
         String myUserId = MyDDPState.getInstance().getUserId();
         mIsOwner = false;
         if (myUserId != null) {
-            mIsOwner = ((String) mFields.get("owner"))
-                    .equals(myUserId);
+            mIsOwner = myUserId.equals(mOwner);
         }
         mLastMyUserId = myUserId;
-        mMyRsvp = null;
-        ArrayList<Map<String, String>> rsvps = getRsvps();
-        int rsvpCount = 0;
-        if (rsvps != null) {
-            for (Map<String, String> rsvpFields : rsvps) {
-                String userId = (String) rsvpFields.get("user");
-                String userRsvp = (String) rsvpFields.get("rsvp");
-                if (userRsvp.equals("yes")) {
-                    rsvpCount++;
-                }
-                if ((myUserId != null) && myUserId.equals(userId)) {
-                    mMyRsvp = userRsvp;
-                }
-            }
+        mMyRsvp = mRsvpIndex.get(myUserId);
+        mAttendees = mRsvpIndex.getYesCount() + getPendingRsvpDelta(RsvpIndex.YES);
+        if ((mPendingRsvp != null) && (myUserId != null)) {
+            mMyRsvp = mPendingRsvp;
         }
-        mAttendees = rsvpCount;
+    }
+
+    /**
+     * Gets how much a pending RSVP changes the count for an RSVP value
+     * @param rsvp "yes", "no" or "maybe"
+     * @return -1, 0 or 1
+     */
+    private int getPendingRsvpDelta(String rsvp) {
+        if ((mPendingRsvp == null) || (mLastMyUserId == null)) {
+            return 0;
+        }
+        int delta = rsvp.equals(mPendingRsvp) ? 1 : 0;
+        if (rsvp.equals(mRsvpIndex.get(mLastMyUserId))) {
+            delta--;
+        }
+        return delta;
     }
 
     /**
@@ -211,34 +419,20 @@ public class Party {
     }
 
     /**
-     * Sets Google Maps marker for this party
-     * @param marker Google Maps marker
+     * Calculates marker bucket based on #attendees
+     * @return attendee bucket used to pick marker icon
      */
-    public void setMarker(Marker marker) {
-        if (this.mMarker != null) {
-            this.mMarker.remove();
-        }
-        this.mMarker = marker;
+    public int getMarkerBucket() {
+        return AttendeeBucket.forAttendees(mAttendees);
     }
-    /**
-     * Gets Google Maps marker for this party
-     * @return Google Maps marker or null
-     */
-    public Marker getMarker() {
-        return this.mMarker;
-    }
-    
+
     /**
      * Calculates marker color based on #attendees
      * @return Google Maps marker color
      */
     public float getMarkerColor() {
         // map attendee count to color
-        if (mAttendees > 100) {
-            return BitmapDescriptorFactory.HUE_VIOLET;
-        } else {
-            return colorMap[(int)(mAttendees / 10)];
-        }
+        return MarkerIcons.getHue(getMarkerBucket());
     }
 }
 
@@ -0,0 +1,330 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Groups nearby parties into clusters for zoomed out map views.
+ * <p>
+ * Parties are bucketed into a screen-sized grid for every zoom level
+ * below {@link #getMaxZoom()} so adding/removing a party only touches one
+ * cluster per level and changing zoom doesn't need a recalculation.
+ * This is only used from the UI thread so it isn't synchronized.
+ * @author kenyee
+ */
+public class PartyClusterer {
+    /** width of a Google Maps world tile in pixels at zoom 0 */
+    private static final double TILE_SIZE = 256.0;
+
+    /** highest zoom level (exclusive) that parties are clustered at */
+    private final int mMaxZoom;
+    /** cell size in degrees for each zoom level */
+    private final double[] mCellSizes;
+    /** clusters for each zoom level keyed by cell */
+    private final List<Map<Long, Cluster>> mLevels;
+    /** party ID to what it contributes to its clusters */
+    private final Map<String, Member> mMembers;
+    /** zoom level whose changed cells are tracked */
+    private int mWatchedZoom = -1;
+    /** cells at the watched zoom level that changed since last drain */
+    private Set<Long> mDirtyCells;
+
+    /**
+     * Group of parties that are near each other at a zoom level
+     */
+    public static class Cluster {
+        private final long mKey;
+        private int mCount;
+        private int mAttendees;
+        private double mSumLat;
+        private double mSumLon;
+
+        Cluster(long key) {
+            mKey = key;
+        }
+
+        /**
+         * Gets cell key that identifies this cluster at its zoom level
+         * @return cluster key
+         */
+        public long getKey() {
+            return mKey;
+        }
+        /**
+         * Gets number of parties in this cluster
+         * @return party count
+         */
+        public int getCount() {
+            return mCount;
+        }
+        /**
+         * Gets total #attendees of all parties in this cluster
+         * @return summed #attendees
+         */
+        public int getAttendees() {
+            return mAttendees;
+        }
+        /**
+         * Gets average latitude of parties in this cluster
+         * @return latitude of cluster center
+         */
+        public double getLatitude() {
+            return mSumLat / mCount;
+        }
+        /**
+         * Gets average longitude of parties in this cluster
+         * @return longitude of cluster center
+         */
+        public double getLongitude() {
+            return mSumLon / mCount;
+        }
+    }
+
+    /**
+     * Position and attendees a party added to its clusters
+     */
+    private static class Member {
+        double lat;
+        double lon;
+        int attendees;
+    }
+
+    /**
+     * Constructor
+     * @param maxZoom parties are clustered at zoom levels below this
+     * @param clusterSizePx size of a cluster cell in screen pixels
+     */
+    public PartyClusterer(int maxZoom, int clusterSizePx) {
+        mMaxZoom = maxZoom;
+        mCellSizes = new double[maxZoom];
+        mLevels = new ArrayList<Map<Long, Cluster>>(maxZoom);
+        for (int zoom = 0; zoom < maxZoom; zoom++) {
+            mCellSizes[zoom] = clusterSizePx * 360.0 / (TILE_SIZE * (1 << zoom));
+            mLevels.add(new HashMap<Long, Cluster>());
+        }
+        mMembers = new HashMap<String, Member>();
+        mDirtyCells = new HashSet<Long>();
+    }
+
+    /**
+     * Gets zoom level at which parties stop being clustered
+     * @return max cluster zoom level (exclusive)
+     */
+    public int getMaxZoom() {
+        return mMaxZoom;
+    }
+
+    /**
+     * Adds a party to its clusters or moves/updates it if it was already added
+     * @param partyId Meteor object ID of party
+     * @param lat GPS latitude
+     * @param lon GPS longitude
+     * @param attendees #attendees of party
+     */
+    public void put(String partyId, double lat, double lon, int attendees) {
+        Member member = mMembers.get(partyId);
+        if (member != null) {
+            if ((member.lat == lat) && (member.lon == lon)
+                    && (member.attendees == attendees)) {
+                return;
+            }
+            apply(member, -1);
+        } else {
+            member = new Member();
+            mMembers.put(partyId, member);
+        }
+        member.lat = lat;
+        member.lon = lon;
+        member.attendees = attendees;
+        apply(member, 1);
+    }
+
+    /**
+     * Removes a party from its clusters
+     * @param partyId Meteor object ID of party
+     */
+    public void remove(String partyId) {
+        Member member = mMembers.remove(partyId);
+        if (member != null) {
+            apply(member, -1);
+        }
+    }
+
+    /**
+     * Removes all parties
+     */
+    public void clear() {
+        mMembers.clear();
+        for (Map<Long, Cluster> level : mLevels) {
+            level.clear();
+        }
+        mDirtyCells.clear();
+    }
+
+    /**
+     * Gets number of parties that have been added
+     * @return party count
+     */
+    public int size() {
+        return mMembers.size();
+    }
+
+    /**
+     * Sets the zoom level whose changed clusters are returned by
+     * {@link #drainDirtyClusters()}
+     * @param zoom map zoom level
+     */
+    public void setWatchedZoom(int zoom) {
+        if (zoom != mWatchedZoom) {
+            mWatchedZoom = zoom;
+            mDirtyCells.clear();
+        }
+    }
+
+    /**
+     * Gets keys of clusters at the watched zoom level that changed since
+     * the last call.  A key whose cluster no longer exists means that
+     * cluster was emptied.
+     * @return changed cluster keys
+     */
+    public Set<Long> drainDirtyClusters() {
+        Set<Long> dirtyCells = mDirtyCells;
+        mDirtyCells = new HashSet<Long>();
+        return dirtyCells;
+    }
+
+    /**
+     * Gets a cluster by key
+     * @param zoom map zoom level
+     * @param key cluster key
+     * @return cluster or null if it's empty
+     */
+    public Cluster getCluster(int zoom, long key) {
+        return mLevels.get(clampZoom(zoom)).get(key);
+    }
+
+    /**
+     * Gets clusters whose center is inside a bounding box.  If west is
+     * greater than east, the box crosses the 180th meridian.
+     * @param zoom map zoom level
+     * @param south southern latitude
+     * @param west western longitude
+     * @param north northern latitude
+     * @param east eastern longitude
+     * @return clusters inside the box
+     */
+    public List<Cluster> getClusters(int zoom, double south, double west,
+            double north, double east) {
+        List<Cluster> results = new ArrayList<Cluster>();
+        zoom = clampZoom(zoom);
+        if (west > east) {
+            queryBox(zoom, south, west, north, 180.0, results);
+            queryBox(zoom, south, -180.0, north, east, results);
+        } else {
+            queryBox(zoom, south, west, north, east, results);
+        }
+        return results;
+    }
+
+    /**
+     * Adds clusters in a box that doesn't cross the 180th meridian
+     */
+    private void queryBox(int zoom, double south, double west, double north,
+            double east, List<Cluster> results) {
+        Map<Long, Cluster> level = mLevels.get(zoom);
+        double cellSize = mCellSizes[zoom];
+        // clusters are centered on their parties so look one cell around the box
+        int minRow = row(south, cellSize) - 1;
+        int maxRow = row(north, cellSize) + 1;
+        int minCol = col(west, cellSize) - 1;
+        int maxCol = col(east, cellSize) + 1;
+        long cellCount = (long) (maxRow - minRow + 1) * (maxCol - minCol + 1);
+        if (cellCount > level.size()) {
+            for (Cluster cluster : level.values()) {
+                addContained(cluster, south, west, north, east, results);
+            }
+        } else {
+            for (int row = minRow; row <= maxRow; row++) {
+                for (int col = minCol; col <= maxCol; col++) {
+                    Cluster cluster = level.get(cellKey(row, col));
+                    if (cluster != null) {
+                        addContained(cluster, south, west, north, east, results);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void addContained(Cluster cluster, double south,
+            double west, double north, double east, List<Cluster> results) {
+        double lat = cluster.getLatitude();
+        double lon = cluster.getLongitude();
+        if ((lat >= south) && (lat <= north) && (lon >= west) && (lon <= east)) {
+            results.add(cluster);
+        }
+    }
+
+    /**
+     * Adds or subtracts a party from its cluster at every zoom level
+     * @param member party position and attendees
+     * @param sign 1 to add, -1 to subtract
+     */
+    private void apply(Member member, int sign) {
+        for (int zoom = 0; zoom < mMaxZoom; zoom++) {
+            double cellSize = mCellSizes[zoom];
+            long key = cellKey(row(member.lat, cellSize), col(member.lon, cellSize));
+            Map<Long, Cluster> level = mLevels.get(zoom);
+            Cluster cluster = level.get(key);
+            if (cluster == null) {
+                cluster = new Cluster(key);
+                level.put(key, cluster);
+            }
+            cluster.mCount += sign;
+            cluster.mAttendees += sign * member.attendees;
+            cluster.mSumLat += sign * member.lat;
+            cluster.mSumLon += sign * member.lon;
+            if (cluster.mCount == 0) {
+                level.remove(key);
+            }
+            if (zoom == mWatchedZoom) {
+                mDirtyCells.add(key);
+            }
+        }
+    }
+
+    private int clampZoom(int zoom) {
+        return Math.max(0, Math.min(zoom, mMaxZoom - 1));
+    }
+
+    private static int row(double lat, double cellSize) {
+        return (int) Math.floor((lat + 90.0) / cellSize);
+    }
+
+    private static int col(double lon, double cellSize) {
+        return (int) Math.floor((lon + 180.0) / cellSize);
+    }
+
+    private static long cellKey(int row, int col) {
+        return (((long) row) << 32) | (col & 0xffffffffL);
+    }
+}
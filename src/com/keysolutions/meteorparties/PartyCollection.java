@@ -0,0 +1,163 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.keysolutions.meteorparties;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.keysolutions.ddpclient.DDPClient.DdpMessageType;
+
+/**
+ * Our wrapper around the DDP parties collection: a Party per document,
+ * the spatial index of their locations and which parties are waiting
+ * for the server to re-send them after a reconnect or snapshot load.
+ * MyDDPState hands it the collection's DDP changes.
+ * <p>
+ * This has no Android dependencies so the benchmarks can run it.
+ * @author kenyee
+ */
+public class PartyCollection {
+    /** Parties by Meteor object ID */
+    private final ConcurrentHashMap<String, Party> mParties;
+    /** spatial index of Parties so map doesn't have to scan them all */
+    private final PartyGridIndex mPartyIndex;
+    /**
+     * IDs of parties loaded from the snapshot or kept across a reconnect
+     * that the server hasn't re-sent yet
+     */
+    private final Set<String> mUnconfirmedPartyIds;
+    /** told about every party that's saved or removed */
+    private final Listener mListener;
+
+    /**
+     * Gets told when Parties change so they can be persisted
+     */
+    public interface Listener {
+        /**
+         * Called when a Party is added or changed
+         * @param party Party that changed
+         */
+        void onPartySaved(Party party);
+
+        /**
+         * Called when a Party is removed
+         * @param docId Meteor object ID of party
+         */
+        void onPartyRemoved(String docId);
+    }
+
+    /**
+     * Constructor
+     * @param listener gets told about saved and removed Parties
+     */
+    public PartyCollection(Listener listener) {
+        mParties = new ConcurrentHashMap<String, Party>();
+        mPartyIndex = new PartyGridIndex();
+        mUnconfirmedPartyIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        mListener = listener;
+    }
+
+    /**
+     * Gets Parties by Meteor object ID
+     * @return live map of Parties
+     */
+    public ConcurrentHashMap<String, Party> getParties() {
+        return mParties;
+    }
+
+    /**
+     * Gets spatial index of Parties
+     * @return spatial index
+     */
+    public PartyGridIndex getPartyIndex() {
+        return mPartyIndex;
+    }
+
+    /**
+     * Gets IDs of Parties the server hasn't re-sent yet
+     * @return live set of IDs
+     */
+    public Set<String> getUnconfirmedPartyIds() {
+        return mUnconfirmedPartyIds;
+    }
+
+    /**
+     * Applies a DDP change to a party document
+     * @param changetype DDP change type
+     * @param docId Meteor object ID of party
+     * @param fields party's fields from the DDP collection (null if removed)
+     * @return change type to broadcast to the UI or null if nothing
+     *         the UI shows changed
+     */
+    public String apply(String changetype, String docId, Map<String, Object> fields) {
+        if (changetype.equals(DdpMessageType.ADDED)) {
+            return added(docId, fields);
+        } else if (changetype.equals(DdpMessageType.REMOVED)) {
+            remove(docId);
+        } else if (changetype.equals(DdpMessageType.UPDATED)) {
+            Party party = mParties.get(docId);
+            party.refreshFields();
+            // party may have been moved
+            mPartyIndex.put(docId, party.getLatitude(), party.getLongitude());
+            mListener.onPartySaved(party);
+        }
+        return changetype;
+    }
+
+    /**
+     * Wraps an added party, or confirms the one we kept if the server
+     * re-sent it after a reconnect or snapshot load
+     */
+    private String added(String docId, Map<String, Object> fields) {
+        Party oldParty = mParties.get(docId);
+        if ((oldParty != null) && mUnconfirmedPartyIds.remove(docId)) {
+            // re-sent after a reconnect or loaded from the snapshot,
+            // so keep the wrapper and only pass on real changes
+            if (!oldParty.setFields(fields)) {
+                return null;
+            }
+            mPartyIndex.put(docId, oldParty.getLatitude(), oldParty.getLongitude());
+            mListener.onPartySaved(oldParty);
+            return DdpMessageType.UPDATED;
+        }
+        mUnconfirmedPartyIds.remove(docId);
+        if (oldParty != null) {
+            // replaced, so forget the old copy's RSVPs
+            oldParty.releaseRsvps();
+        }
+        Party party = new Party(docId, fields);
+        mParties.put(docId, party);
+        mPartyIndex.put(docId, party.getLatitude(), party.getLongitude());
+        mListener.onPartySaved(party);
+        return DdpMessageType.ADDED;
+    }
+
+    /**
+     * Removes a Party wrapper and its index entries
+     * @param docId Meteor object ID of party
+     */
+    public void remove(String docId) {
+        mUnconfirmedPartyIds.remove(docId);
+        Party party = mParties.remove(docId);
+        if (party != null) {
+            party.releaseRsvps();
+        }
+        mPartyIndex.remove(docId);
+        mListener.onPartyRemoved(docId);
+    }
+}
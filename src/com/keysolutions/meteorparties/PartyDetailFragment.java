@@ -16,16 +16,15 @@
 
 package com.keysolutions.meteorparties;
 
+import java.util.List;
 import java.util.Map;
 
-import com.keysolutions.ddpclient.android.DDPBroadcastReceiver;
 import com.keysolutions.meteorparties.R;
 
 import android.annotation.SuppressLint;
-import android.content.BroadcastReceiver;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
-import android.support.v4.content.LocalBroadcastManager;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
@@ -34,10 +33,9 @@ import android.view.View.OnTouchListener;
 import android.view.ViewGroup;
 import android.view.animation.DecelerateInterpolator;
 import android.view.animation.OvershootInterpolator;
+import android.widget.ListView;
 import android.widget.RadioGroup;
 import android.widget.RadioGroup.OnCheckedChangeListener;
-import android.widget.TableLayout;
-import android.widget.TableRow;
 import android.widget.TextView;
 import android.widget.ToggleButton;
 
@@ -56,8 +54,13 @@ public class PartyDetailFragment extends Fragment {
     /** The dummy content this fragment is presenting. */
     private Party mParty;
 
-    /** Make receiver a member variable of a class to be able to unregister it later */
-    private BroadcastReceiver mReceiver;
+    /** Make listener a member variable of a class to be able to unregister it later */
+    private MyDDPEventListener mDDPListener;
+
+    /** RSVP list contents */
+    private RsvpListAdapter mRsvpAdapter;
+    /** builds RSVP rows for the latest party update */
+    private RsvpRowsTask mRsvpRowsTask;
     
     DecelerateInterpolator sDecelerator = new DecelerateInterpolator();
     OvershootInterpolator sOverShooter = new OvershootInterpolator(10f);
@@ -87,6 +90,8 @@ public class PartyDetailFragment extends Fragment {
             Bundle savedInstanceState) {
         View rootView = inflater.inflate(R.layout.fragment_party_detail,
                 container, false);
+        mRsvpAdapter = new RsvpListAdapter(inflater);
+        ((ListView) rootView.findViewById(R.id.rsvp_list)).setAdapter(mRsvpAdapter);
 
         // Show the party details.
         if (mParty != null) {
@@ -103,54 +108,61 @@ public class PartyDetailFragment extends Fragment {
      * @param rootView view the party display elements are in
      */
     public void showPartyInfo(Bundle savedInstanceState, View rootView) {
-        ((TextView) rootView.findViewById(R.id.party_title))
-                .setText(mParty.getTitle());
-        ((TextView) rootView.findViewById(R.id.party_description))
-                .setText(mParty.getDescription());
-        // get ready to show my RSVP info
-        String myUserId = MyDDPState.getInstance().getUserId();
-        // add RSVP list
-        // NOTE: if you have a lot of RSVPs, you should be using a ListView
-        // The TableLayout is used here to make it this demo simple to
-        // understand
-        if (mParty.getRsvps() != null) {
-            TableLayout table = (TableLayout) rootView
-                    .findViewById(R.id.rsvp_list);
-            table.removeAllViews();
-            // add header
-            TableRow tr = (TableRow) getLayoutInflater(savedInstanceState)
-                    .inflate(R.layout.header_party_rsvp, null);
-            table.addView(tr);
-            for (Map<String, String> rsvp : mParty.getRsvps()) {
-                String rsvpValue = rsvp.get("rsvp");
-                String rsvpUser = rsvp.get("user");
-                if ((myUserId == null) || (!myUserId.equals(rsvpUser))) {
-                    // don't add row for my RSVP because that's displayed later
-                    tr = (TableRow) getLayoutInflater(savedInstanceState)
-                            .inflate(R.layout.row_party_rsvp, null);
-                    TextView tv;
-                    tv = (TextView) tr.findViewById(R.id.user);
-                    String email = MyDDPState.getInstance()
-                            .getUserEmail(rsvpUser);
-                    tv.setText(email);
-                    tv = (TextView) tr.findViewById(R.id.rsvp);
-                    String rsvpDisplayed = "";
-                    int rsvpColor = 0;
-                    if (rsvpValue.equals("yes")) {
-                        rsvpDisplayed = "Going";
-                        rsvpColor = 0xFF00FF00;
-                    } else if (rsvpValue.equals("no")) {
-                        rsvpDisplayed = "Declined";
-                        rsvpColor = 0xFFFF0000;
-                    } else if (rsvpValue.equals("maybe")) {
-                        rsvpDisplayed = "Maybe";
-                        rsvpColor = 0xFF0000FF;
-                    }
-                    tv.setText(rsvpDisplayed);
-                    tv.setTextColor(rsvpColor);
-                    table.addView(tr);
-                }
+        setTextIfChanged((TextView) rootView.findViewById(R.id.party_title),
+                mParty.getTitle());
+        setTextIfChanged((TextView) rootView.findViewById(R.id.party_description),
+                mParty.getDescription());
+        // build the RSVP rows in the background so big parties open quickly
+        if (mRsvpRowsTask != null) {
+            mRsvpRowsTask.cancel(false);
+        }
+        mRsvpRowsTask = new RsvpRowsTask(mParty.getRsvps(),
+                MyDDPState.getInstance().getUserId(), mRsvpAdapter.getRows());
+        mRsvpRowsTask.execute();
+    }
+
+    /**
+     * Sets a TextView's text only if it changed so it doesn't relayout
+     * @param textView view to update
+     * @param text text to show
+     */
+    private static void setTextIfChanged(TextView textView, String text) {
+        CharSequence oldText = textView.getText();
+        if ((oldText == null) || (text == null) || !text.contentEquals(oldText)) {
+            textView.setText(text);
+        }
+    }
+
+    /**
+     * Builds RSVP list rows (including email lookups) off the UI thread
+     */
+    private class RsvpRowsTask extends AsyncTask<Void, Void, List<RsvpListAdapter.Row>> {
+        private final List<Map<String, String>> mRsvps;
+        private final String mMyUserId;
+        /** rows currently displayed so unchanged ones can be reused */
+        private final List<RsvpListAdapter.Row> mPreviousRows;
+
+        RsvpRowsTask(List<Map<String, String>> rsvps, String myUserId,
+                List<RsvpListAdapter.Row> previousRows) {
+            mRsvps = rsvps;
+            mMyUserId = myUserId;
+            mPreviousRows = previousRows;
+        }
+
+        @Override
+        protected List<RsvpListAdapter.Row> doInBackground(Void... params) {
+            return RsvpListAdapter.buildRows(mRsvps, mMyUserId, mPreviousRows);
+        }
+
+        @Override
+        protected void onPostExecute(List<RsvpListAdapter.Row> rows) {
+            if (isCancelled() || (mRsvpRowsTask != this)) {
+                // a newer party update is being built
+                return;
             }
+            mRsvpRowsTask = null;
+            // only redraws if a row was added, changed or removed
+            mRsvpAdapter.setRows(rows);
         }
     }
 
@@ -159,16 +171,7 @@ public class PartyDetailFragment extends Fragment {
      * @return null, "yes", "no", or "maybe"
      */
     public String getMyRsvp() {
-        String myRsvp = null;
-        String myUserId = MyDDPState.getInstance().getUserId();
-        for (Map<String, String> rsvp : mParty.getRsvps()) {
-            String rsvpValue = rsvp.get("rsvp");
-            String rsvpUser = rsvp.get("user");
-            if ((myUserId != null) && (myUserId.equals(rsvpUser))) {
-                myRsvp = rsvpValue;
-            }
-        }
-        return myRsvp;
+        return mParty.getMyRsvp();
     }
     
     /**
@@ -182,6 +185,9 @@ public class PartyDetailFragment extends Fragment {
         ((View)(rootView.findViewById(R.id.login_for_rsvp))).setVisibility(isLoggedIn ? View.INVISIBLE : View.VISIBLE);             
         ((View)(rootView.findViewById(R.id.rsvp_buttons))).setVisibility(isLoggedIn ? View.VISIBLE : View.INVISIBLE);             
         ((View)(rootView.findViewById(R.id.label_my_rsvp))).setVisibility(isLoggedIn ? View.VISIBLE : View.INVISIBLE);
+        // let user know if their RSVP hasn't reached the server yet
+        ((TextView) rootView.findViewById(R.id.label_my_rsvp)).setText(
+                mParty.hasPendingRsvp() ? R.string.label_rsvp_pending : R.string.label_rsvp);
         
         if (isLoggedIn) {
             RadioGroup rsvpButtons = ((RadioGroup) rootView.findViewById(R.id.rsvp_buttons));
@@ -261,11 +267,14 @@ public class PartyDetailFragment extends Fragment {
     public void onPause() {
         super.onPause();
 
-        if (mReceiver != null) {
-            // unhook the receiver
-            LocalBroadcastManager.getInstance(getActivity())
-                    .unregisterReceiver(mReceiver);
-            mReceiver = null;
+        if (mRsvpRowsTask != null) {
+            mRsvpRowsTask.cancel(false);
+            mRsvpRowsTask = null;
+        }
+        if (mDDPListener != null) {
+            // unhook the listener
+            MyDDPState.getInstance().removeListener(mDDPListener);
+            mDDPListener = null;
         }
     }
 
@@ -274,13 +283,15 @@ public class PartyDetailFragment extends Fragment {
         super.onResume();
 
         // get ready to handle DDP events
-        mReceiver = new DDPBroadcastReceiver(MyDDPState.getInstance(), getActivity()) {
+        mDDPListener = new MyDDPEventListener(getActivity()) {
             @Override
             protected void onSubscriptionUpdate(String changeType,
                     String subscriptionName, String docId) {
                 if ((mParty != null) && (mParty.getId().equals(docId))) {
                     // redisplay party
                     showPartyInfo(null, getView());
+                    // my RSVP may have been rolled back
+                    updateMyRsvpDisplay(getView());
                 }
             }
             @Override
@@ -294,6 +305,7 @@ public class PartyDetailFragment extends Fragment {
                 updateMyRsvpDisplay(getView());
             }
         };
+        MyDDPState.getInstance().addListener(mDDPListener);
     }
     
 }
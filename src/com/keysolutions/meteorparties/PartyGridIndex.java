@@ -0,0 +1,222 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed-size lat/lon grid used to look up parties in a bounding box
+ * without scanning the whole parties collection.
+ * <p>
+ * This has no Android dependencies so it can be used from the DDP
+ * thread and the UI thread; all methods are synchronized.
+ * @author kenyee
+ */
+public class PartyGridIndex {
+    /** default cell size in degrees (roughly 1km at the equator) */
+    public static final double DEFAULT_CELL_SIZE = 0.01;
+
+    /** cell size in degrees */
+    private final double mCellSize;
+    /** cell key to entries in that cell */
+    private final Map<Long, ArrayList<Entry>> mCells;
+    /** document ID to its entry so we can move/remove it */
+    private final Map<String, Entry> mEntries;
+
+    /**
+     * Location of one document in the grid
+     */
+    private static class Entry {
+        String id;
+        double lat;
+        double lon;
+        long cellKey;
+        /** index of this entry in its cell's list so removal is O(1) */
+        int slot;
+    }
+
+    /**
+     * Constructor using the default cell size
+     */
+    public PartyGridIndex() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * Constructor
+     * @param cellSize size of each grid cell in degrees
+     */
+    public PartyGridIndex(double cellSize) {
+        mCellSize = cellSize;
+        mCells = new HashMap<Long, ArrayList<Entry>>();
+        mEntries = new HashMap<String, Entry>();
+    }
+
+    /**
+     * Adds a document or moves it if it's already in the index
+     * @param id Meteor object ID
+     * @param lat GPS latitude
+     * @param lon GPS longitude
+     */
+    public synchronized void put(String id, double lat, double lon) {
+        long cellKey = cellKey(row(lat), col(lon));
+        Entry entry = mEntries.get(id);
+        if (entry != null) {
+            entry.lat = lat;
+            entry.lon = lon;
+            if (entry.cellKey == cellKey) {
+                // still in the same cell so nothing to move
+                return;
+            }
+            removeFromCell(entry);
+        } else {
+            entry = new Entry();
+            entry.id = id;
+            entry.lat = lat;
+            entry.lon = lon;
+            mEntries.put(id, entry);
+        }
+        entry.cellKey = cellKey;
+        ArrayList<Entry> cell = mCells.get(cellKey);
+        if (cell == null) {
+            cell = new ArrayList<Entry>();
+            mCells.put(cellKey, cell);
+        }
+        entry.slot = cell.size();
+        cell.add(entry);
+    }
+
+    /**
+     * Removes a document from the index
+     * @param id Meteor object ID
+     */
+    public synchronized void remove(String id) {
+        Entry entry = mEntries.remove(id);
+        if (entry != null) {
+            removeFromCell(entry);
+        }
+    }
+
+    /**
+     * Removes everything from the index
+     */
+    public synchronized void clear() {
+        mCells.clear();
+        mEntries.clear();
+    }
+
+    /**
+     * Gets number of documents in the index
+     * @return document count
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Finds all documents inside a bounding box.  If west is greater
+     * than east, the box is assumed to cross the 180th meridian.
+     * @param south southern latitude
+     * @param west western longitude
+     * @param north northern latitude
+     * @param east eastern longitude
+     * @return IDs of documents in the box
+     */
+    public synchronized List<String> query(double south, double west,
+            double north, double east) {
+        List<String> results = new ArrayList<String>();
+        if (west > east) {
+            queryBox(south, west, north, 180.0, results);
+            queryBox(south, -180.0, north, east, results);
+        } else {
+            queryBox(south, west, north, east, results);
+        }
+        return results;
+    }
+
+    /**
+     * Adds IDs of documents in a box that doesn't cross the 180th meridian
+     */
+    private void queryBox(double south, double west, double north,
+            double east, List<String> results) {
+        int minRow = row(south);
+        int maxRow = row(north);
+        int minCol = col(west);
+        int maxCol = col(east);
+        long cellCount = (long) (maxRow - minRow + 1) * (maxCol - minCol + 1);
+        if (cellCount > mCells.size()) {
+            // zoomed way out, so it's cheaper to walk the occupied cells
+            for (ArrayList<Entry> cell : mCells.values()) {
+                addContained(cell, south, west, north, east, results);
+            }
+        } else {
+            for (int row = minRow; row <= maxRow; row++) {
+                for (int col = minCol; col <= maxCol; col++) {
+                    ArrayList<Entry> cell = mCells.get(cellKey(row, col));
+                    if (cell != null) {
+                        addContained(cell, south, west, north, east, results);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds IDs of a cell's documents that are inside the box
+     */
+    private static void addContained(ArrayList<Entry> cell, double south,
+            double west, double north, double east, List<String> results) {
+        for (int i = 0; i < cell.size(); i++) {
+            Entry entry = cell.get(i);
+            if ((entry.lat >= south) && (entry.lat <= north)
+                    && (entry.lon >= west) && (entry.lon <= east)) {
+                results.add(entry.id);
+            }
+        }
+    }
+
+    /**
+     * Removes entry from its cell by swapping the last entry into its slot
+     */
+    private void removeFromCell(Entry entry) {
+        ArrayList<Entry> cell = mCells.get(entry.cellKey);
+        int last = cell.size() - 1;
+        Entry moved = cell.remove(last);
+        if (moved != entry) {
+            moved.slot = entry.slot;
+            cell.set(entry.slot, moved);
+        }
+        if (cell.isEmpty()) {
+            mCells.remove(entry.cellKey);
+        }
+    }
+
+    private int row(double lat) {
+        return (int) Math.floor((lat + 90.0) / mCellSize);
+    }
+
+    private int col(double lon) {
+        return (int) Math.floor((lon + 180.0) / mCellSize);
+    }
+
+    private static long cellKey(int row, int col) {
+        return (((long) row) << 32) | (col & 0xffffffffL);
+    }
+}
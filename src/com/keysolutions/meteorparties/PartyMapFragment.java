@@ -16,17 +16,17 @@
 
 package com.keysolutions.meteorparties;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 import android.app.Activity;
 import android.app.Dialog;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.location.Criteria;
 import android.location.Location;
 import android.location.LocationManager;
 import android.os.Bundle;
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import com.google.android.gms.common.ConnectionResult;
@@ -37,14 +37,11 @@ import com.google.android.gms.maps.GoogleMap.OnCameraChangeListener;
 import com.google.android.gms.maps.GoogleMap.OnInfoWindowClickListener;
 import com.google.android.gms.maps.GoogleMap.OnMarkerClickListener;
 import com.google.android.gms.maps.SupportMapFragment;
-import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.Marker;
-import com.google.android.gms.maps.model.MarkerOptions;
-import com.keysolutions.ddpclient.android.DDPBroadcastReceiver;
-import com.keysolutions.ddpclient.android.DDPStateSingleton;
+import com.keysolutions.ddpclient.DDPClient.DdpMessageType;
 
 /**
  * A Google map fragment showing parties on a map.
@@ -57,17 +54,54 @@ public class PartyMapFragment extends SupportMapFragment {
 
     private static final float ZOOM_LEVEL = 15;
 
+    /** zoom level at which individual parties are shown instead of clusters */
+    private static final int CLUSTER_MAX_ZOOM = 13;
+
+    /** size of the grid cells parties are clustered into */
+    private static final int CLUSTER_SIZE_PX = 64;
+
+    /** max number of hidden markers kept around for reuse */
+    private static final int MARKER_POOL_SIZE = 200;
+
+
     /** reference to Google Maps object */
     private GoogleMap mMap;
 
-    /** broadcast receiver */
-    private BroadcastReceiver mReceiver;
+    /** DDP event listener */
+    private MyDDPEventListener mDDPListener;
 
     /** for storing selected party in bundle */
     private static final String STATE_SELECTED_PARTY = "selected_party";
     
-    /** for looking up Party from marker */
-    private HashMap<String, Party> mPartyMarkerMap;
+    /** for looking up party ID from marker ID */
+    private HashMap<String, String> mPartyMarkerMap = new HashMap<String, String>();
+
+    /** markers currently on the map, keyed by party ID */
+    private HashMap<String, Marker> mMarkers = new HashMap<String, Marker>();
+
+    /** map bounds from the last camera change so updates can be reconciled */
+    private LatLngBounds mVisibleBounds;
+
+    /** map zoom level from the last camera change */
+    private int mZoom;
+
+    /** clusters parties when zoomed out (created when first needed) */
+    private PartyClusterer mClusterer;
+
+    /** cluster markers currently on the map, keyed by cluster key */
+    private HashMap<Long, Marker> mClusterMarkers = new HashMap<Long, Marker>();
+
+    /** for looking up cluster key from marker ID */
+    private HashMap<String, Long> mClusterMarkerMap = new HashMap<String, Long>();
+
+    /** hidden markers that can be reused instead of adding new ones */
+    private MarkerPool mMarkerPool;
+
+    /**
+     * whether to subscribe to just the parties around the viewport
+     * (from the viewport_subscriptions setting)
+     */
+    private boolean mViewportSubscriptions;
 
     /**
      * The fragment's current callback object, which is notified of map party
@@ -128,6 +162,8 @@ public class PartyMapFragment extends SupportMapFragment {
                     "Activity must implement fragment's callbacks.");
         }
         mCallbacks = (Callbacks) activity;
+        mViewportSubscriptions = activity.getResources().getBoolean(
+                R.bool.viewport_subscriptions);
     }
 
     @Override
@@ -199,16 +235,16 @@ public class PartyMapFragment extends SupportMapFragment {
     public void onPause() {
         super.onPause();
 
-        if (mReceiver != null) {
-            // unhook the receiver
-            LocalBroadcastManager.getInstance(getActivity())
-                    .unregisterReceiver(mReceiver);
-            mReceiver = null;
+        if (mDDPListener != null) {
+            // unhook the listener
+            MyDDPState.getInstance().removeListener(mDDPListener);
+            mDDPListener = null;
         }
         // unhook any map markers
-        for (Party party : MyDDPState.getInstance().getParties().values()) {
-            party.setMarker(null);
-        }
+        clearPartyMarkers();
+        clearClusterMarkers();
+        // we won't hear about changes while paused, so recluster on resume
+        mClusterer = null;
     }
 
     @Override
@@ -221,22 +257,41 @@ public class PartyMapFragment extends SupportMapFragment {
         
         // re-hook or init map
         initMap();
+        if (mVisibleBounds != null) {
+            // put back the markers we removed in onPause
+            showVisibleParties();
+        }
 
         // get ready to handle DDP events
-        mReceiver = new DDPBroadcastReceiver(MyDDPState.getInstance(), getActivity()) {
+        mDDPListener = new MyDDPEventListener(getActivity()) {
             @Override
-            protected void onDDPConnect(DDPStateSingleton ddp) {
+            protected void onDDPConnect(MyDDPState ddp) {
                 super.onDDPConnect(ddp);
                 // add our subscriptions needed for the activity here
-                ddp.subscribe("parties", new Object[] {});
+                if (mViewportSubscriptions) {
+                    // wait for the map to know where it is before subscribing
+                    if (mVisibleBounds != null) {
+                        subscribeToVisibleParties();
+                    }
+                } else {
+                    ddp.subscribe("parties", new Object[] {});
+                }
                 ddp.subscribe("directory", new Object[] {});
             }
             @Override
+            protected void onSubscriptionBatch(List<SubscriptionChange> changes) {
+                super.onSubscriptionBatch(changes);
+                if (mZoom < CLUSTER_MAX_ZOOM) {
+                    // update clusters touched by this batch of changes
+                    reconcileClusterMarkers();
+                }
+            }
+            @Override
             protected void onSubscriptionUpdate(String changeType,
                     String subscriptionName, String docId) {
                 if (subscriptionName.equals("parties")) {
-                    // show any new parties
-                    showVisibleParties();
+                    // only touch the marker for the party that changed
+                    reconcilePartyMarker(changeType, docId);
                 }
             }
             @Override
@@ -250,6 +305,7 @@ public class PartyMapFragment extends SupportMapFragment {
                 getActivity().invalidateOptionsMenu();
             }
         };
+        MyDDPState.getInstance().addListener(mDDPListener);
         MyDDPState.getInstance().connectIfNeeded();    // start connection process if we're not connected
     }
 
@@ -273,6 +329,13 @@ public class PartyMapFragment extends SupportMapFragment {
     private void initialMapSetup() {
         hookMap();
 
+        CameraPosition lastCamera = MyDDPState.getInstance().getLastCameraPosition();
+        if (lastCamera != null) {
+            // go back to where the user was last time
+            mMap.moveCamera(CameraUpdateFactory.newCameraPosition(lastCamera));
+            return;
+        }
+
         // zoom to current location if available, otherwise use camera
         // changelistener
         mMap.animateCamera(CameraUpdateFactory.zoomTo(ZOOM_LEVEL), 2000, null);
@@ -300,6 +363,7 @@ public class PartyMapFragment extends SupportMapFragment {
         mMap.setOnCameraChangeListener(new OnCameraChangeListener() {
             @Override
             public void onCameraChange(CameraPosition position) {
+                MyDDPState.getInstance().setLastCameraPosition(position);
                 showVisibleParties();
             }
         });
@@ -307,8 +371,14 @@ public class PartyMapFragment extends SupportMapFragment {
         mMap.setOnMarkerClickListener(new OnMarkerClickListener() {
             @Override
             public boolean onMarkerClick(Marker marker) {
-                Party party = mPartyMarkerMap.get(marker.getTitle()
-                        + marker.getSnippet());
+                if (mClusterMarkerMap.containsKey(marker.getId())) {
+                    // zoom in to split up the cluster
+                    mMap.animateCamera(CameraUpdateFactory.newLatLngZoom(
+                            marker.getPosition(),
+                            Math.min(mZoom + 2, CLUSTER_MAX_ZOOM)));
+                    return true;
+                }
+                Party party = getMarkerParty(marker);
                 if (party != null) {
                     if (((PartyMapActivity) getActivity()).isTwoPaneMode()) {
                         // refreshes detail fragment
@@ -328,8 +398,7 @@ public class PartyMapFragment extends SupportMapFragment {
         mMap.setOnInfoWindowClickListener(new OnInfoWindowClickListener() {
             @Override
             public void onInfoWindowClick(Marker marker) {
-                Party party = mPartyMarkerMap.get(marker.getTitle()
-                        + marker.getSnippet());
+                Party party = getMarkerParty(marker);
                 if (party != null) {
                     ((PartyMapActivity) getActivity()).onPartySelected(
                             party.getId(), true);
@@ -355,58 +424,312 @@ public class PartyMapFragment extends SupportMapFragment {
                         .setSelectedPartyId(MyDDPState.getInstance().getParties().keySet().iterator().next());
             }
         }
-        String partyId = MyApplication.getSelectedPartyId();
-        // we have to do this convoluted marker-party hashmap because
-        // the Google Maps API doesn't let us tuck an ID into the marker object
-        // Note: you can use http://code.google.com/p/android-maps-extensions/
-        // but this wasn't included to minimize project references
-        if (mPartyMarkerMap == null) {
-            mPartyMarkerMap = new HashMap<String, Party>();
+        mVisibleBounds = this.mMap.getProjection()
+                .getVisibleRegion().latLngBounds;
+        mZoom = (int) this.mMap.getCameraPosition().zoom;
+        if (mViewportSubscriptions && MyDDPState.getInstance().isConnected()) {
+            subscribeToVisibleParties();
         }
-        mPartyMarkerMap.clear();
-        Marker selectedMarker = null;
+        if (mZoom < CLUSTER_MAX_ZOOM) {
+            // too many parties to show individually, so show clusters
+            clearPartyMarkers();
+            showVisibleClusters();
+            return;
+        }
+        clearClusterMarkers();
         // add all party locations that are visible on the current map
-        LatLngBounds visibleBounds = this.mMap.getProjection()
-                .getVisibleRegion().latLngBounds;
-        for (Party party : MyDDPState.getInstance().getParties().values()) {
-            if (visibleBounds.contains(new LatLng(party.getLatitude(),
-                    party.getLongitude()))) {
-                if (party.getMarker() == null) {
-                    // add party if it wasn't visible
-                    Marker marker = mMap
-                            .addMarker(new MarkerOptions()
-                                    .position(
-                                            new LatLng(party.getLatitude(),
-                                                    party.getLongitude()))
-                                    .title(party.getTitle())
-                                    .snippet(party.getDescription())
-                                    .icon(BitmapDescriptorFactory
-                                            .defaultMarker(party
-                                                    .getMarkerColor())));
-                    party.setMarker(marker);
-                }
-                if (party.getId() == partyId) {
-                    selectedMarker = party.getMarker();
-                }
-                mPartyMarkerMap.put(party.getMarker().getTitle()
-                        + party.getMarker().getSnippet(), party);
+        // using the spatial index so we only touch visible parties
+        List<Party> visibleParties = MyDDPState.getInstance().getPartiesInBounds(
+                mVisibleBounds.southwest.latitude, mVisibleBounds.southwest.longitude,
+                mVisibleBounds.northeast.latitude, mVisibleBounds.northeast.longitude);
+        HashMap<String, Marker> lastMarkers = mMarkers;
+        mMarkers = new HashMap<String, Marker>();
+        List<Party> newParties = new ArrayList<Party>();
+        for (Party party : visibleParties) {
+            Marker marker = lastMarkers.remove(party.getId());
+            if (marker != null) {
+                mMarkers.put(party.getId(), marker);
             } else {
-                // remove any party that is not visible
-                party.setMarker(null);
+                newParties.add(party);
             }
         }
+        // remove any party that is not visible anymore first
+        // so its marker can be reused for parties coming into view
+        for (Marker marker : lastMarkers.values()) {
+            removeMarker(marker);
+        }
+        for (Party party : newParties) {
+            // add party if it wasn't visible
+            mMarkers.put(party.getId(), addPartyMarker(party));
+        }
         // show marker info for selected marker
+        showSelectedParty(MyApplication.getSelectedPartyId());
+    }
+
+    /**
+     * Subscribes to the parties around the visible part of the map
+     * (MyDDPState skips this if the current subscription covers it)
+     */
+    private void subscribeToVisibleParties() {
+        MyDDPState.getInstance().subscribeToPartiesIn(new ViewportBounds(
+                mVisibleBounds.southwest.latitude, mVisibleBounds.southwest.longitude,
+                mVisibleBounds.northeast.latitude, mVisibleBounds.northeast.longitude));
+    }
+
+    /**
+     * Updates only the marker for the party that changed instead of
+     * redisplaying all the visible parties
+     * @param changeType DDP change type (added, changed, removed)
+     * @param partyId Meteor object ID of party that changed
+     */
+    private void reconcilePartyMarker(String changeType, String partyId) {
+        if ((this.mMap == null) || (mVisibleBounds == null)) {
+            // map isn't set up yet; the next camera change will show everything
+            return;
+        }
+        Party party = MyDDPState.getInstance().getParty(partyId);
+        boolean removed = changeType.equals(DdpMessageType.REMOVED) || (party == null);
+        if (mClusterer != null) {
+            if (removed) {
+                mClusterer.remove(partyId);
+            } else {
+                mClusterer.put(partyId, party.getLatitude(),
+                        party.getLongitude(), party.getAttendees());
+            }
+        }
+        if (mZoom < CLUSTER_MAX_ZOOM) {
+            // cluster markers are updated once the whole batch is applied
+            return;
+        }
+        Marker marker = mMarkers.get(partyId);
+        if (removed) {
+            if (marker != null) {
+                mMarkers.remove(partyId);
+                removeMarker(marker);
+            }
+            return;
+        }
+        LatLng position = new LatLng(party.getLatitude(), party.getLongitude());
+        if (!mVisibleBounds.contains(position)) {
+            // party isn't visible (or was moved out of view)
+            if (marker != null) {
+                mMarkers.remove(partyId);
+                removeMarker(marker);
+            }
+            return;
+        }
+        if (MyApplication.getSelectedPartyId() == null) {
+            // select the first party if nothing is selected yet
+            MyApplication.setSelectedPartyId(partyId);
+        }
+        if (marker == null) {
+            marker = addPartyMarker(party);
+            mMarkers.put(partyId, marker);
+            if (partyId.equals(MyApplication.getSelectedPartyId())) {
+                showSelectedParty(partyId);
+            }
+        } else {
+            // update the existing marker in place
+            marker.setPosition(position);
+            marker.setTitle(party.getTitle());
+            marker.setSnippet(party.getDescription());
+            // only changes the icon if the attendee bucket changed
+            getMarkerPool().setIcon(marker,
+                    MarkerIcons.getPartyIcon(party.getMarkerBucket()));
+            if (marker.isInfoWindowShown()) {
+                // refresh info window text
+                marker.showInfoWindow();
+            }
+        }
+    }
+
+    /**
+     * Displays clusters of parties that are visible on the map
+     */
+    private void showVisibleClusters() {
+        PartyClusterer clusterer = getClusterer();
+        clusterer.setWatchedZoom(mZoom);
+        // markers we keep are already up to date and the rest are re-added
+        clusterer.drainDirtyClusters();
+        List<PartyClusterer.Cluster> clusters = clusterer.getClusters(mZoom,
+                mVisibleBounds.southwest.latitude, mVisibleBounds.southwest.longitude,
+                mVisibleBounds.northeast.latitude, mVisibleBounds.northeast.longitude);
+        HashMap<Long, Marker> lastMarkers = mClusterMarkers;
+        mClusterMarkers = new HashMap<Long, Marker>();
+        List<PartyClusterer.Cluster> newClusters = new ArrayList<PartyClusterer.Cluster>();
+        for (PartyClusterer.Cluster cluster : clusters) {
+            Marker marker = lastMarkers.remove(cluster.getKey());
+            if (marker != null) {
+                mClusterMarkers.put(cluster.getKey(), marker);
+            } else {
+                newClusters.add(cluster);
+            }
+        }
+        for (Marker marker : lastMarkers.values()) {
+            removeClusterMarker(marker);
+        }
+        for (PartyClusterer.Cluster cluster : newClusters) {
+            mClusterMarkers.put(cluster.getKey(), addClusterMarker(cluster));
+        }
+    }
+
+    /**
+     * Updates only the cluster markers whose clusters changed
+     */
+    private void reconcileClusterMarkers() {
+        if ((this.mMap == null) || (mVisibleBounds == null) || (mClusterer == null)) {
+            return;
+        }
+        for (Long key : mClusterer.drainDirtyClusters()) {
+            PartyClusterer.Cluster cluster = mClusterer.getCluster(mZoom, key);
+            Marker marker = mClusterMarkers.get(key);
+            if ((cluster == null) || !mVisibleBounds.contains(
+                    new LatLng(cluster.getLatitude(), cluster.getLongitude()))) {
+                if (marker != null) {
+                    mClusterMarkers.remove(key);
+                    removeClusterMarker(marker);
+                }
+            } else if (marker == null) {
+                mClusterMarkers.put(key, addClusterMarker(cluster));
+            } else {
+                marker.setPosition(new LatLng(cluster.getLatitude(),
+                        cluster.getLongitude()));
+                marker.setTitle(getString(R.string.cluster_title, cluster.getCount()));
+                marker.setSnippet(getString(R.string.cluster_snippet, cluster.getAttendees()));
+            }
+        }
+    }
+
+    /**
+     * Gets party clusterer, filling it with all the parties if needed
+     * @return party clusterer
+     */
+    private PartyClusterer getClusterer() {
+        if (mClusterer == null) {
+            mClusterer = new PartyClusterer(CLUSTER_MAX_ZOOM, CLUSTER_SIZE_PX);
+            for (Party party : MyDDPState.getInstance().getParties().values()) {
+                mClusterer.put(party.getId(), party.getLatitude(),
+                        party.getLongitude(), party.getAttendees());
+            }
+        }
+        return mClusterer;
+    }
+
+    /**
+     * Adds a marker for a party cluster to the map
+     * @param cluster party cluster
+     * @return new Google Maps marker
+     */
+    private Marker addClusterMarker(PartyClusterer.Cluster cluster) {
+        Marker marker = getMarkerPool().acquire(
+                new LatLng(cluster.getLatitude(), cluster.getLongitude()),
+                getString(R.string.cluster_title, cluster.getCount()),
+                getString(R.string.cluster_snippet, cluster.getAttendees()),
+                MarkerIcons.getClusterIcon());
+        mClusterMarkerMap.put(marker.getId(), cluster.getKey());
+        return marker;
+    }
+
+    /**
+     * Hides a cluster marker so it can be reused
+     * @param marker Google Maps marker
+     */
+    private void removeClusterMarker(Marker marker) {
+        mClusterMarkerMap.remove(marker.getId());
+        getMarkerPool().release(marker);
+    }
+
+    /**
+     * Gets pool of reusable markers for the current map
+     * @return marker pool
+     */
+    private MarkerPool getMarkerPool() {
+        if (mMarkerPool == null) {
+            mMarkerPool = new MarkerPool(mMap, MARKER_POOL_SIZE);
+        }
+        return mMarkerPool;
+    }
+
+    /**
+     * Hides all party markers (they're kept in the pool for reuse)
+     */
+    private void clearPartyMarkers() {
+        for (Marker marker : mMarkers.values()) {
+            getMarkerPool().release(marker);
+        }
+        mMarkers.clear();
+        mPartyMarkerMap.clear();
+    }
+
+    /**
+     * Hides all cluster markers (they're kept in the pool for reuse)
+     */
+    private void clearClusterMarkers() {
+        for (Marker marker : mClusterMarkers.values()) {
+            getMarkerPool().release(marker);
+        }
+        mClusterMarkers.clear();
+        mClusterMarkerMap.clear();
+    }
+
+    /**
+     * Adds a marker for a party to the map
+     * @param party Party to add
+     * @return new Google Maps marker
+     */
+    private Marker addPartyMarker(Party party) {
+        Marker marker = getMarkerPool().acquire(
+                new LatLng(party.getLatitude(), party.getLongitude()),
+                party.getTitle(),
+                party.getDescription(),
+                MarkerIcons.getPartyIcon(party.getMarkerBucket()));
+        // we have to do this marker-party hashmap because
+        // the Google Maps API doesn't let us tuck an ID into the marker object
+        // Note: you can use http://code.google.com/p/android-maps-extensions/
+        // but this wasn't included to minimize project references
+        mPartyMarkerMap.put(marker.getId(), party.getId());
+        return marker;
+    }
+
+    /**
+     * Hides a party marker so it can be reused
+     * @param marker Google Maps marker
+     */
+    private void removeMarker(Marker marker) {
+        mPartyMarkerMap.remove(marker.getId());
+        getMarkerPool().release(marker);
+    }
+
+    /**
+     * Looks up the party a marker is showing
+     * @param marker Google Maps marker
+     * @return Party object or null if not found
+     */
+    private Party getMarkerParty(Marker marker) {
+        String partyId = mPartyMarkerMap.get(marker.getId());
+        if (partyId == null) {
+            return null;
+        }
+        return MyDDPState.getInstance().getParty(partyId);
+    }
+
+    /**
+     * Shows info window for selected party if it's visible and notifies
+     * the activity
+     * @param partyId Meteor object ID of selected party
+     */
+    private void showSelectedParty(String partyId) {
+        if (partyId == null) {
+            return;
+        }
+        Marker selectedMarker = mMarkers.get(partyId);
         if (selectedMarker != null) {
             selectedMarker.showInfoWindow();
             // also send fragment notification
-            Party party = mPartyMarkerMap.get(selectedMarker.getTitle()
-                    + selectedMarker.getSnippet());
-            if (party != null) {
-                PartyMapActivity activity = ((PartyMapActivity) getActivity());
-                // when rotating device, activity can be null for a small fraction of time
-                if (activity != null) {
-                    activity.onPartySelected(party.getId(), false);
-                }
+            PartyMapActivity activity = ((PartyMapActivity) getActivity());
+            // when rotating device, activity can be null for a small fraction of time
+            if (activity != null) {
+                activity.onPartySelected(partyId, false);
             }
         }
     }
@@ -0,0 +1,263 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+
+/**
+ * Compact binary snapshot of the parties collection and last map camera
+ * position so the map can be drawn right away on a cold start.
+ * <p>
+ * The snapshot is read through a memory-mapped buffer and each party is
+ * decoded into the same kind of field map DDP would give us, one at a time,
+ * so the caller can show parties as they're read.
+ * @author kenyee
+ */
+public class PartySnapshot {
+    /** file marker so we don't try to read some other file */
+    private static final int MAGIC = 0x4d505331;    // "MPS1"
+    /** bump this when the format changes so old snapshots are ignored */
+    private static final int VERSION = 1;
+    private static final String UTF8 = "UTF-8";
+    /** fewest bytes a saved party can take (4 null strings, lat/lon, public, RSVP count) */
+    private static final int MIN_PARTY_BYTES = 4 * 4 + 8 + 8 + 1 + 4;
+    /** fewest bytes a saved RSVP can take (null user and an RSVP code) */
+    private static final int MIN_RSVP_BYTES = 4 + 1;
+
+    /** RSVP values are stored as a byte code since there are only 3 */
+    private static final String RSVP_CODES[] = {
+        RsvpIndex.YES, RsvpIndex.NO, RsvpIndex.MAYBE
+    };
+
+    /**
+     * Receives the contents of a snapshot as it is read
+     */
+    public interface Callback {
+        /**
+         * Called with the saved camera position before any parties
+         * @param camera camera position or null if none was saved
+         */
+        void onCameraPosition(CameraPosition camera);
+        /**
+         * Called for each saved party
+         * @param partyId Meteor object ID of party
+         * @param fields party fields in the same format DDP uses
+         * @return false to stop reading
+         */
+        boolean onParty(String partyId, Map<String, Object> fields);
+    }
+
+    private PartySnapshot() {
+    }
+
+    /**
+     * Writes a snapshot.  The file is replaced atomically so a crash while
+     * writing leaves the old snapshot alone.
+     * @param file snapshot file
+     * @param parties parties to save
+     * @param camera camera position to save (can be null)
+     * @throws IOException if the snapshot couldn't be written
+     */
+    public static void write(File file, Collection<Party> parties,
+            CameraPosition camera) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeBoolean(camera != null);
+            if (camera != null) {
+                out.writeDouble(camera.target.latitude);
+                out.writeDouble(camera.target.longitude);
+                out.writeFloat(camera.zoom);
+            }
+            // parties can change while we're writing so copy them first
+            ArrayList<Party> partyList = new ArrayList<Party>(parties);
+            out.writeInt(partyList.size());
+            for (Party party : partyList) {
+                writeString(out, party.getId());
+                writeString(out, party.getTitle());
+                writeString(out, party.getDescription());
+                writeString(out, party.getOwner());
+                out.writeDouble(party.getLatitude());
+                out.writeDouble(party.getLongitude());
+                out.writeBoolean(party.isPublic());
+                ArrayList<Map<String, String>> rsvps = party.getRsvps();
+                if (rsvps == null) {
+                    out.writeInt(0);
+                    continue;
+                }
+                rsvps = new ArrayList<Map<String, String>>(rsvps);
+                out.writeInt(rsvps.size());
+                for (Map<String, String> rsvp : rsvps) {
+                    writeString(out, rsvp.get("user"));
+                    writeRsvp(out, rsvp.get("rsvp"));
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Couldn't replace " + file);
+        }
+    }
+
+    /**
+     * Reads a snapshot, passing its contents to the callback
+     * @param file snapshot file
+     * @param callback receives the camera position and parties
+     * @return false if there was no usable snapshot
+     * @throws IOException if the snapshot couldn't be read or is corrupt
+     */
+    public static boolean read(File file, Callback callback) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+            if ((in.remaining() < 8) || (in.getInt() != MAGIC)
+                    || (in.getInt() != VERSION)) {
+                return false;
+            }
+            CameraPosition camera = null;
+            if (in.get() != 0) {
+                double lat = in.getDouble();
+                double lon = in.getDouble();
+                float zoom = in.getFloat();
+                camera = CameraPosition.fromLatLngZoom(new LatLng(lat, lon), zoom);
+            }
+            callback.onCameraPosition(camera);
+            int partyCount = readCount(in, MIN_PARTY_BYTES);
+            for (int i = 0; i < partyCount; i++) {
+                String partyId = readString(in);
+                Map<String, Object> fields = new HashMap<String, Object>();
+                fields.put("title", readString(in));
+                fields.put("description", readString(in));
+                fields.put("owner", readString(in));
+                fields.put("lat", in.getDouble());
+                fields.put("lon", in.getDouble());
+                fields.put("public", in.get() != 0);
+                int rsvpCount = readCount(in, MIN_RSVP_BYTES);
+                ArrayList<Map<String, String>> rsvps = new ArrayList<Map<String, String>>(rsvpCount);
+                for (int j = 0; j < rsvpCount; j++) {
+                    Map<String, String> rsvp = new HashMap<String, String>();
+                    rsvp.put("user", readString(in));
+                    rsvp.put("rsvp", readRsvp(in));
+                    rsvps.add(rsvp);
+                }
+                fields.put("rsvps", rsvps);
+                if (!callback.onParty(partyId, fields)) {
+                    break;
+                }
+            }
+            return true;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string (length -1 for null)
+     */
+    private static void writeString(DataOutputStream out, String value)
+            throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a count, making sure the rest of the file is big enough for
+     * that many items so a corrupt count can't make us allocate too much
+     */
+    private static int readCount(MappedByteBuffer in, int minItemBytes)
+            throws IOException {
+        int count = in.getInt();
+        if ((count < 0) || (count > in.remaining() / minItemBytes)) {
+            throw new IOException("Corrupt snapshot: bad count " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Reads a string written by writeString
+     */
+    private static String readString(MappedByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if ((length < 0) || (length > in.remaining())) {
+            throw new IOException("Corrupt snapshot: bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Writes an RSVP as a byte code, or as a string if it's not a known value
+     */
+    private static void writeRsvp(DataOutputStream out, String rsvp)
+            throws IOException {
+        for (int i = 0; i < RSVP_CODES.length; i++) {
+            if (RSVP_CODES[i].equals(rsvp)) {
+                out.writeByte(i);
+                return;
+            }
+        }
+        out.writeByte(-1);
+        writeString(out, rsvp);
+    }
+
+    /**
+     * Reads an RSVP written by writeRsvp
+     */
+    private static String readRsvp(MappedByteBuffer in) throws IOException {
+        byte code = in.get();
+        if (code == -1) {
+            return readString(in);
+        }
+        if ((code < 0) || (code >= RSVP_CODES.length)) {
+            throw new IOException("Corrupt snapshot: bad RSVP code " + code);
+        }
+        return RSVP_CODES[code];
+    }
+}
@@ -0,0 +1,384 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+/**
+ * Optional SQLite persistence cache for parties so the data survives
+ * process death, with owner/public queries against the database.
+ * Viewport queries use MyDDPState's in-memory spatial index instead,
+ * which holds every party we have anyway.
+ * <p>
+ * Writes are queued and applied on a background thread in batched
+ * transactions; queries overlay the writes that haven't been committed
+ * yet so they don't lag the DDP data.  Queries hit the database, so
+ * don't run them on the UI thread.
+ * @author kenyee
+ */
+public class PartyStore extends SQLiteOpenHelper {
+    private static final String DB_NAME = "parties.db";
+    private static final int DB_VERSION = 2;
+    /** how long to collect writes before committing them in one transaction */
+    private static final long BATCH_DELAY_MS = 250;
+
+    private static final String TABLE_PARTIES = "parties";
+    /** location index table version 1 had; dropped on upgrade */
+    private static final String TABLE_RTREE = "party_rtree";
+
+    /** writes waiting for the next batch */
+    private final ConcurrentLinkedQueue<Write> mPendingWrites;
+    /** background thread the batches are written on */
+    private final HandlerThread mWriterThread;
+    private final Handler mWriter;
+    /** whether a batch has been scheduled */
+    private boolean mBatchScheduled;
+    /** latest write per party that hasn't been committed yet (guarded by this) */
+    private final HashMap<String, Write> mUncommittedWrites;
+    private final Gson mGson;
+
+    /** writes all pending changes in one transaction */
+    private final Runnable mWriteBatch = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (PartyStore.this) {
+                mBatchScheduled = false;
+            }
+            writeBatch();
+        }
+    };
+
+    /**
+     * A party insert/update or delete waiting to be written.  The party's
+     * fields are copied when it's queued since the Party keeps changing.
+     */
+    private static class Write {
+        String docId;
+        /** false if this is a delete */
+        boolean isPut;
+        String title;
+        String description;
+        String owner;
+        boolean isPublic;
+        double lat;
+        double lon;
+        List<Map<String, String>> rsvps;
+    }
+
+    /**
+     * Picks which uncommitted writes match a query
+     */
+    private interface WriteFilter {
+        /**
+         * Whether a stored party would match the query
+         * @param write party's latest uncommitted insert/update
+         * @return true if it matches
+         */
+        boolean matches(Write write);
+    }
+
+    /**
+     * Constructor
+     * @param context Android application context
+     */
+    public PartyStore(Context context) {
+        super(context, DB_NAME, null, DB_VERSION);
+        mPendingWrites = new ConcurrentLinkedQueue<Write>();
+        mUncommittedWrites = new HashMap<String, Write>();
+        mWriterThread = new HandlerThread("PartyStoreWriter",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mWriterThread.start();
+        mWriter = new Handler(mWriterThread.getLooper());
+        mGson = new Gson();
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_PARTIES + " ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "doc_id TEXT NOT NULL UNIQUE, "
+                + "title TEXT, description TEXT, owner TEXT, "
+                + "is_public INTEGER NOT NULL, "
+                + "lat REAL NOT NULL, lon REAL NOT NULL, "
+                + "rsvps TEXT)");
+        db.execSQL("CREATE INDEX parties_owner ON " + TABLE_PARTIES + " (owner)");
+        db.execSQL("CREATE INDEX parties_public ON " + TABLE_PARTIES + " (is_public)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // it's only a cache of server data so just start over
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_RTREE);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_PARTIES);
+        onCreate(db);
+    }
+
+    /**
+     * Queues an insert/update of a party
+     * @param party Party to save
+     */
+    public void put(Party party) {
+        Write write = new Write();
+        write.docId = party.getId();
+        write.isPut = true;
+        write.title = party.getTitle();
+        write.description = party.getDescription();
+        write.owner = party.getOwner();
+        write.isPublic = party.isPublic();
+        write.lat = party.getLatitude();
+        write.lon = party.getLongitude();
+        write.rsvps = party.getRsvps();
+        queue(write);
+    }
+
+    /**
+     * Queues a delete of a party
+     * @param docId Meteor object ID of party
+     */
+    public void remove(String docId) {
+        Write write = new Write();
+        write.docId = docId;
+        write.isPut = false;
+        queue(write);
+    }
+
+    /**
+     * Adds a write to the next batch, scheduling the batch if needed
+     */
+    private void queue(Write write) {
+        mPendingWrites.add(write);
+        synchronized (this) {
+            mUncommittedWrites.put(write.docId, write);
+            if (!mBatchScheduled) {
+                mBatchScheduled = true;
+                mWriter.postDelayed(mWriteBatch, BATCH_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Writes all queued changes in one transaction (on the writer thread)
+     */
+    private void writeBatch() {
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement findId = db.compileStatement(
+                "SELECT _id FROM " + TABLE_PARTIES + " WHERE doc_id = ?");
+        List<Write> batch = new ArrayList<Write>();
+        db.beginTransaction();
+        try {
+            Write write;
+            while ((write = mPendingWrites.poll()) != null) {
+                batch.add(write);
+                long rowId = -1;
+                findId.bindString(1, write.docId);
+                try {
+                    rowId = findId.simpleQueryForLong();
+                } catch (SQLiteException e) {
+                    // not in the store yet
+                }
+                if (write.isPut) {
+                    writeParty(db, rowId, write);
+                } else if (rowId >= 0) {
+                    db.execSQL("DELETE FROM " + TABLE_PARTIES + " WHERE _id = ?",
+                            new Object[] { rowId });
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            findId.close();
+        }
+        synchronized (this) {
+            for (Write write : batch) {
+                // leave it if the party has been written again since
+                if (mUncommittedWrites.get(write.docId) == write) {
+                    mUncommittedWrites.remove(write.docId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Inserts or updates a party row
+     * @return row ID of party
+     */
+    private long writeParty(SQLiteDatabase db, long rowId, Write write) {
+        String rsvps = (write.rsvps != null) ? mGson.toJson(write.rsvps) : null;
+        Object[] values = new Object[] {
+            write.title, write.description, write.owner,
+            write.isPublic ? 1 : 0, write.lat, write.lon, rsvps, write.docId
+        };
+        if (rowId >= 0) {
+            db.execSQL("UPDATE " + TABLE_PARTIES + " SET title = ?, description = ?, "
+                    + "owner = ?, is_public = ?, lat = ?, lon = ?, rsvps = ? "
+                    + "WHERE doc_id = ?", values);
+            return rowId;
+        }
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE_PARTIES
+                + " (title, description, owner, is_public, lat, lon, rsvps, doc_id) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        bindString(insert, 1, write.title);
+        bindString(insert, 2, write.description);
+        bindString(insert, 3, write.owner);
+        insert.bindLong(4, write.isPublic ? 1 : 0);
+        insert.bindDouble(5, write.lat);
+        insert.bindDouble(6, write.lon);
+        bindString(insert, 7, rsvps);
+        insert.bindString(8, write.docId);
+        try {
+            return insert.executeInsert();
+        } finally {
+            insert.close();
+        }
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Finds parties created by a user
+     * @param owner Meteor user ID of owner
+     * @return IDs of the user's parties
+     */
+    public List<String> queryIdsByOwner(final String owner) {
+        List<Write> uncommitted = getUncommittedWrites();
+        List<String> results = new ArrayList<String>();
+        addIds(getReadableDatabase().rawQuery("SELECT doc_id FROM " + TABLE_PARTIES
+                + " WHERE owner = ?", new String[] { owner }), results);
+        return overlay(results, uncommitted, new WriteFilter() {
+            @Override
+            public boolean matches(Write write) {
+                return owner.equals(write.owner);
+            }
+        });
+    }
+
+    /**
+     * Finds public parties
+     * @return IDs of public parties
+     */
+    public List<String> queryPublicIds() {
+        List<Write> uncommitted = getUncommittedWrites();
+        List<String> results = new ArrayList<String>();
+        addIds(getReadableDatabase().rawQuery("SELECT doc_id FROM " + TABLE_PARTIES
+                + " WHERE is_public = 1", null), results);
+        return overlay(results, uncommitted, new WriteFilter() {
+            @Override
+            public boolean matches(Write write) {
+                return write.isPublic;
+            }
+        });
+    }
+
+    /**
+     * Copies the latest write of each party that hasn't been committed
+     * @return uncommitted writes
+     */
+    private synchronized List<Write> getUncommittedWrites() {
+        return new ArrayList<Write>(mUncommittedWrites.values());
+    }
+
+    /**
+     * Fixes up query results with the writes that hadn't been committed
+     * when the query started, so parties added, changed or removed in the
+     * last batch window aren't missing or stale
+     * @param results IDs the database returned
+     * @param uncommitted writes from getUncommittedWrites
+     * @param filter which uncommitted inserts/updates match the query
+     * @return IDs matching the query
+     */
+    private static List<String> overlay(List<String> results, List<Write> uncommitted,
+            WriteFilter filter) {
+        if (uncommitted.isEmpty()) {
+            return results;
+        }
+        LinkedHashSet<String> ids = new LinkedHashSet<String>(results);
+        for (Write write : uncommitted) {
+            if (write.isPut && filter.matches(write)) {
+                ids.add(write.docId);
+            } else {
+                ids.remove(write.docId);
+            }
+        }
+        return new ArrayList<String>(ids);
+    }
+
+    /**
+     * Reads every stored party in the same field format DDP uses
+     * @param callback receives each party
+     */
+    public void loadAll(PartySnapshot.Callback callback) {
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT doc_id, title, "
+                + "description, owner, is_public, lat, lon, rsvps FROM "
+                + TABLE_PARTIES, null);
+        try {
+            while (cursor.moveToNext()) {
+                Map<String, Object> fields = new HashMap<String, Object>();
+                fields.put("title", cursor.getString(1));
+                fields.put("description", cursor.getString(2));
+                fields.put("owner", cursor.getString(3));
+                fields.put("public", cursor.getInt(4) != 0);
+                fields.put("lat", cursor.getDouble(5));
+                fields.put("lon", cursor.getDouble(6));
+                String rsvps = cursor.getString(7);
+                if (rsvps != null) {
+                    ArrayList<Map<String, String>> rsvpList = mGson.fromJson(rsvps,
+                            new TypeToken<ArrayList<Map<String, String>>>() {}.getType());
+                    fields.put("rsvps", rsvpList);
+                }
+                if (!callback.onParty(cursor.getString(0), fields)) {
+                    break;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void addIds(Cursor cursor, List<String> results) {
+        try {
+            while (cursor.moveToNext()) {
+                results.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
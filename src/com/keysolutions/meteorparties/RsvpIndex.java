@@ -0,0 +1,206 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-user index of a party's RSVPs with running yes/no/maybe counts.
+ * <p>
+ * When the party's "rsvps" array changes, only the entries that were
+ * added, changed or removed are applied to the index and counts.
+ * @author kenyee
+ */
+public class RsvpIndex {
+    /** RSVP value for attending */
+    public static final String YES = "yes";
+    /** RSVP value for not attending */
+    public static final String NO = "no";
+    /** RSVP value for maybe attending */
+    public static final String MAYBE = "maybe";
+
+    /** user ID to their RSVP */
+    private final HashMap<String, Entry> mRsvpByUser;
+    /** incremented on every update so we can spot removed users */
+    private int mStamp;
+    private int mYesCount;
+    private int mNoCount;
+    private int mMaybeCount;
+
+    /**
+     * Callback for each RSVP that changed during an update
+     */
+    public interface Listener {
+        /**
+         * Called when a user's RSVP changed
+         * @param userId Meteor user ID
+         * @param oldRsvp previous RSVP or null if the user just RSVP'd
+         * @param newRsvp new RSVP or null if the user's RSVP was removed
+         */
+        void onRsvpChanged(String userId, String oldRsvp, String newRsvp);
+    }
+
+    /**
+     * One user's RSVP
+     */
+    private static class Entry {
+        String rsvp;
+        /** update stamp of the last update that saw this user */
+        int stamp;
+    }
+
+    /**
+     * Constructor
+     */
+    public RsvpIndex() {
+        mRsvpByUser = new HashMap<String, Entry>();
+    }
+
+    /**
+     * Applies the differences between the index and a party's "rsvps" array
+     * @param rsvps array of user/rsvp maps (null if there are none)
+     * @param listener notified of each change (can be null)
+     * @return true if any RSVP changed
+     */
+    public boolean update(List<Map<String, String>> rsvps, Listener listener) {
+        mStamp++;
+        boolean changed = false;
+        int previousSize = mRsvpByUser.size();
+        int matched = 0;
+        if (rsvps != null) {
+            for (int i = 0; i < rsvps.size(); i++) {
+                Map<String, String> rsvpFields = rsvps.get(i);
+                String userId = rsvpFields.get("user");
+                String rsvp = rsvpFields.get("rsvp");
+                Entry entry = mRsvpByUser.get(userId);
+                if (entry == null) {
+                    entry = new Entry();
+                    entry.rsvp = rsvp;
+                    mRsvpByUser.put(userId, entry);
+                    count(rsvp, 1);
+                    changed = true;
+                    if (listener != null) {
+                        listener.onRsvpChanged(userId, null, rsvp);
+                    }
+                } else {
+                    if (entry.stamp != mStamp) {
+                        matched++;
+                    }
+                    if (!rsvp.equals(entry.rsvp)) {
+                        String oldRsvp = entry.rsvp;
+                        count(oldRsvp, -1);
+                        entry.rsvp = rsvp;
+                        count(rsvp, 1);
+                        changed = true;
+                        if (listener != null) {
+                            listener.onRsvpChanged(userId, oldRsvp, rsvp);
+                        }
+                    }
+                }
+                entry.stamp = mStamp;
+            }
+        }
+        if (matched < previousSize) {
+            // some users weren't in the new array so they've been removed
+            Iterator<Map.Entry<String, Entry>> iter = mRsvpByUser.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry<String, Entry> mapEntry = iter.next();
+                Entry entry = mapEntry.getValue();
+                if (entry.stamp != mStamp) {
+                    iter.remove();
+                    count(entry.rsvp, -1);
+                    changed = true;
+                    if (listener != null) {
+                        listener.onRsvpChanged(mapEntry.getKey(), entry.rsvp, null);
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Passes every RSVP in the index to a listener as if it were new
+     * @param listener notified of each RSVP
+     */
+    public void replay(Listener listener) {
+        for (Map.Entry<String, Entry> mapEntry : mRsvpByUser.entrySet()) {
+            listener.onRsvpChanged(mapEntry.getKey(), null, mapEntry.getValue().rsvp);
+        }
+    }
+
+    /**
+     * Gets a user's RSVP
+     * @param userId Meteor user ID
+     * @return "yes", "no", "maybe" or null if user hasn't RSVP'd
+     */
+    public String get(String userId) {
+        if (userId == null) {
+            return null;
+        }
+        Entry entry = mRsvpByUser.get(userId);
+        return (entry != null) ? entry.rsvp : null;
+    }
+
+    /**
+     * Gets number of users who RSVP'd
+     * @return RSVP count
+     */
+    public int size() {
+        return mRsvpByUser.size();
+    }
+
+    /**
+     * Gets number of users who RSVP'd yes
+     * @return yes count
+     */
+    public int getYesCount() {
+        return mYesCount;
+    }
+
+    /**
+     * Gets number of users who RSVP'd no
+     * @return no count
+     */
+    public int getNoCount() {
+        return mNoCount;
+    }
+
+    /**
+     * Gets number of users who RSVP'd maybe
+     * @return maybe count
+     */
+    public int getMaybeCount() {
+        return mMaybeCount;
+    }
+
+    /**
+     * Adjusts the count for an RSVP value
+     */
+    private void count(String rsvp, int delta) {
+        if (YES.equals(rsvp)) {
+            mYesCount += delta;
+        } else if (NO.equals(rsvp)) {
+            mNoCount += delta;
+        } else if (MAYBE.equals(rsvp)) {
+            mMaybeCount += delta;
+        }
+    }
+}
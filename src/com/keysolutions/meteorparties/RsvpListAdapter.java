@@ -0,0 +1,227 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * Adapter for the RSVP list in the party detail screen.  Rows are
+ * recycled by the ListView and the row contents are computed ahead
+ * of time (off the UI thread) so getView only has to set text.
+ * @author kenyee
+ */
+public class RsvpListAdapter extends BaseAdapter {
+    /** used to inflate new rows */
+    private final LayoutInflater mInflater;
+    /** rows being displayed */
+    private List<Row> mRows;
+    /** stable item ID given to each user, so IDs can't collide like hash codes can */
+    private final HashMap<String, Long> mItemIds;
+
+    /**
+     * Display info for one RSVP
+     */
+    public static class Row {
+        /** Meteor user ID of person who RSVP'd */
+        final String userId;
+        /** "yes", "no" or "maybe" */
+        final String rsvp;
+        /** email address to display for user */
+        final String email;
+        /** RSVP text to display */
+        final String label;
+        /** color of RSVP text */
+        final int color;
+
+        Row(String userId, String rsvp, String email, String label, int color) {
+            this.userId = userId;
+            this.rsvp = rsvp;
+            this.email = email;
+            this.label = label;
+            this.color = color;
+        }
+    }
+
+    /**
+     * Caches a row's views so we don't have to look them up each time
+     * the row is recycled
+     */
+    private static class ViewHolder {
+        TextView user;
+        TextView rsvp;
+        /** row currently shown in these views */
+        Row row;
+    }
+
+    /**
+     * Constructor
+     * @param inflater inflater used to create rows
+     */
+    public RsvpListAdapter(LayoutInflater inflater) {
+        mInflater = inflater;
+        mRows = new ArrayList<Row>();
+        mItemIds = new HashMap<String, Long>();
+    }
+
+    /**
+     * Gets the rows being displayed
+     * @return current rows
+     */
+    public List<Row> getRows() {
+        return mRows;
+    }
+
+    /**
+     * Replaces the rows being displayed.  Nothing is redrawn if no row
+     * changed, and only changed rows are rebound when the list redraws.
+     * @param rows new rows from buildRows
+     * @return true if any row was added, changed or removed
+     */
+    public boolean setRows(List<Row> rows) {
+        if (rows.size() == mRows.size()) {
+            boolean changed = false;
+            for (int i = 0; i < rows.size(); i++) {
+                // unchanged rows are the same objects (see buildRows)
+                if (rows.get(i) != mRows.get(i)) {
+                    changed = true;
+                    break;
+                }
+            }
+            if (!changed) {
+                return false;
+            }
+        }
+        mRows = rows;
+        notifyDataSetChanged();
+        return true;
+    }
+
+    /**
+     * Builds display rows for a party's RSVPs.  This looks up emails so
+     * it should be called off the UI thread.  Rows that haven't changed
+     * since the previous build are reused so setRows can tell which rows
+     * actually changed.
+     * @param rsvps party's RSVP list (may be null)
+     * @param myUserId current user's ID; their RSVP is shown separately
+     * @param previousRows rows from the previous build
+     * @return rows to display
+     */
+    public static List<Row> buildRows(List<Map<String, String>> rsvps, String myUserId,
+            List<Row> previousRows) {
+        List<Row> rows = new ArrayList<Row>();
+        if (rsvps == null) {
+            return rows;
+        }
+        HashMap<String, Row> previousByUser = new HashMap<String, Row>();
+        for (Row row : previousRows) {
+            previousByUser.put(row.userId, row);
+        }
+        MyDDPState ddp = MyDDPState.getInstance();
+        for (Map<String, String> rsvp : rsvps) {
+            String rsvpValue = rsvp.get("rsvp");
+            String rsvpUser = rsvp.get("user");
+            if ((myUserId != null) && myUserId.equals(rsvpUser)) {
+                // don't add row for my RSVP because that's displayed later
+                continue;
+            }
+            String email = ddp.getUserEmail(rsvpUser);
+            Row previous = previousByUser.get(rsvpUser);
+            if ((previous != null) && equals(previous.rsvp, rsvpValue)
+                    && equals(previous.email, email)) {
+                rows.add(previous);
+                continue;
+            }
+            String rsvpDisplayed = "";
+            int rsvpColor = 0;
+            if ("yes".equals(rsvpValue)) {
+                rsvpDisplayed = "Going";
+                rsvpColor = 0xFF00FF00;
+            } else if ("no".equals(rsvpValue)) {
+                rsvpDisplayed = "Declined";
+                rsvpColor = 0xFFFF0000;
+            } else if ("maybe".equals(rsvpValue)) {
+                rsvpDisplayed = "Maybe";
+                rsvpColor = 0xFF0000FF;
+            }
+            rows.add(new Row(rsvpUser, rsvpValue, email, rsvpDisplayed, rsvpColor));
+        }
+        return rows;
+    }
+
+    private static boolean equals(String a, String b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
+    @Override
+    public int getCount() {
+        return mRows.size();
+    }
+
+    @Override
+    public Row getItem(int position) {
+        return mRows.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        String userId = mRows.get(position).userId;
+        Long itemId = mItemIds.get(userId);
+        if (itemId == null) {
+            itemId = Long.valueOf(mItemIds.size());
+            mItemIds.put(userId, itemId);
+        }
+        return itemId;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        ViewHolder holder;
+        if (convertView == null) {
+            convertView = mInflater.inflate(R.layout.row_party_rsvp, parent, false);
+            holder = new ViewHolder();
+            holder.user = (TextView) convertView.findViewById(R.id.user);
+            holder.rsvp = (TextView) convertView.findViewById(R.id.rsvp);
+            convertView.setTag(holder);
+        } else {
+            holder = (ViewHolder) convertView.getTag();
+        }
+        Row row = mRows.get(position);
+        if (holder.row == row) {
+            // recycled view already shows this row
+            return convertView;
+        }
+        holder.row = row;
+        holder.user.setText(row.email);
+        holder.rsvp.setText(row.label);
+        holder.rsvp.setTextColor(row.color);
+        return convertView;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties;
+
+import com.keysolutions.ddpclient.DDPClient.DdpMessageType;
+
+/**
+ * Net change to a single document in a subscription batch
+ * @author kenyee
+ */
+public class SubscriptionChange {
+    /** name of collection the document is in */
+    private final String mCollectionName;
+    /** DDP change type (added, changed, removed) */
+    private String mChangeType;
+    /** Meteor object ID of document */
+    private final String mDocId;
+
+    /**
+     * Constructor
+     * @param collectionName name of collection the document is in
+     * @param changeType DDP change type
+     * @param docId Meteor object ID of document
+     */
+    public SubscriptionChange(String collectionName, String changeType,
+            String docId) {
+        mCollectionName = collectionName;
+        mChangeType = changeType;
+        mDocId = docId;
+    }
+
+    /**
+     * Gets collection name
+     * @return name of collection the document is in
+     */
+    public String getCollectionName() {
+        return mCollectionName;
+    }
+
+    /**
+     * Gets net change type
+     * @return DDP change type (added, changed, removed)
+     */
+    public String getChangeType() {
+        return mChangeType;
+    }
+
+    /**
+     * Gets document ID
+     * @return Meteor object ID of document
+     */
+    public String getDocId() {
+        return mDocId;
+    }
+
+    /**
+     * Folds a later change to the same document into this one
+     * @param changeType later DDP change type
+     * @return false if the changes cancel out (added then removed)
+     */
+    boolean merge(String changeType) {
+        if (mChangeType.equals(DdpMessageType.ADDED)) {
+            if (changeType.equals(DdpMessageType.REMOVED)) {
+                // listeners never saw it, so they don't need to hear about it
+                return false;
+            }
+            // added then changed is still just added
+        } else if (mChangeType.equals(DdpMessageType.REMOVED)) {
+            if (changeType.equals(DdpMessageType.REMOVED)) {
+                return true;
+            }
+            // removed then added back is a change to what listeners have
+            mChangeType = DdpMessageType.UPDATED;
+        } else {
+            // changed then anything: removed wins, otherwise still a change
+            if (changeType.equals(DdpMessageType.REMOVED)) {
+                mChangeType = DdpMessageType.REMOVED;
+            }
+        }
+        return true;
+    }
+}
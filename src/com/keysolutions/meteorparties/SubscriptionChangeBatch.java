@@ -0,0 +1,82 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Collects subscription changes between UI frames and collapses repeated
+ * changes to the same document into one net change.
+ * <p>
+ * This is filled from the DDP thread and drained from the UI thread
+ * so all methods are synchronized.
+ * @author kenyee
+ */
+public class SubscriptionChangeBatch {
+    /** pending changes keyed by collection name + document ID, in arrival order */
+    private final LinkedHashMap<String, SubscriptionChange> mChanges;
+
+    /**
+     * Constructor
+     */
+    public SubscriptionChangeBatch() {
+        mChanges = new LinkedHashMap<String, SubscriptionChange>();
+    }
+
+    /**
+     * Adds a change to the batch, merging it with any pending change to
+     * the same document
+     * @param collectionName name of collection the document is in
+     * @param changeType DDP change type
+     * @param docId Meteor object ID of document
+     * @return true if the batch was empty before this change
+     */
+    public synchronized boolean add(String collectionName, String changeType,
+            String docId) {
+        boolean wasEmpty = mChanges.isEmpty();
+        String key = collectionName + '/' + docId;
+        SubscriptionChange change = mChanges.get(key);
+        if (change == null) {
+            mChanges.put(key, new SubscriptionChange(collectionName,
+                    changeType, docId));
+        } else if (!change.merge(changeType)) {
+            mChanges.remove(key);
+        }
+        return wasEmpty;
+    }
+
+    /**
+     * Gets number of pending changes
+     * @return pending change count
+     */
+    public synchronized int size() {
+        return mChanges.size();
+    }
+
+    /**
+     * Removes all pending changes from the batch
+     * @return pending changes in arrival order
+     */
+    public synchronized List<SubscriptionChange> drain() {
+        List<SubscriptionChange> changes = new ArrayList<SubscriptionChange>(
+                mChanges.values());
+        mChanges.clear();
+        return changes;
+    }
+}
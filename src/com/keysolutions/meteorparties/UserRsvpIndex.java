@@ -0,0 +1,102 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reverse index from each user to the parties they've RSVP'd to.
+ * <p>
+ * This is updated from the DDP thread as party RSVPs change and read
+ * from the UI thread so all methods are synchronized.
+ * @author kenyee
+ */
+public class UserRsvpIndex {
+    /** user ID to (party ID to RSVP) */
+    private final HashMap<String, HashMap<String, String>> mPartiesByUser;
+
+    /**
+     * Constructor
+     */
+    public UserRsvpIndex() {
+        mPartiesByUser = new HashMap<String, HashMap<String, String>>();
+    }
+
+    /**
+     * Records a user's RSVP for a party
+     * @param partyId Meteor object ID of party
+     * @param userId Meteor user ID
+     * @param rsvp "yes", "no", "maybe" or null to remove the RSVP
+     */
+    public synchronized void put(String partyId, String userId, String rsvp) {
+        HashMap<String, String> parties = mPartiesByUser.get(userId);
+        if (rsvp == null) {
+            if (parties != null) {
+                parties.remove(partyId);
+                if (parties.isEmpty()) {
+                    mPartiesByUser.remove(userId);
+                }
+            }
+            return;
+        }
+        if (parties == null) {
+            parties = new HashMap<String, String>();
+            mPartiesByUser.put(userId, parties);
+        }
+        parties.put(partyId, rsvp);
+    }
+
+    /**
+     * Gets a user's RSVP for a party
+     * @param userId Meteor user ID
+     * @param partyId Meteor object ID of party
+     * @return "yes", "no", "maybe" or null if the user hasn't RSVP'd
+     */
+    public synchronized String get(String userId, String partyId) {
+        HashMap<String, String> parties = mPartiesByUser.get(userId);
+        return (parties != null) ? parties.get(partyId) : null;
+    }
+
+    /**
+     * Gets IDs of parties a user has RSVP'd to
+     * @param userId Meteor user ID
+     * @param rsvp only return parties with this RSVP, or null for any RSVP
+     * @return party IDs
+     */
+    public synchronized List<String> getPartyIds(String userId, String rsvp) {
+        List<String> partyIds = new ArrayList<String>();
+        HashMap<String, String> parties = mPartiesByUser.get(userId);
+        if (parties != null) {
+            for (Map.Entry<String, String> entry : parties.entrySet()) {
+                if ((rsvp == null) || rsvp.equals(entry.getValue())) {
+                    partyIds.add(entry.getKey());
+                }
+            }
+        }
+        return partyIds;
+    }
+
+    /**
+     * Removes everything from the index
+     */
+    public synchronized void clear() {
+        mPartiesByUser.clear();
+    }
+}
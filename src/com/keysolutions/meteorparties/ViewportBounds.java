@@ -0,0 +1,171 @@
+/*
+* (c)Copyright 2013 Ken Yee, KEY Enterprise Solutions 
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.keysolutions.meteorparties;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lat/lon bounding box used to scope the parties subscription to the
+ * area around the map's viewport.  If west is greater than east, the box
+ * crosses the 180th meridian.
+ * <p>
+ * This has no Android dependencies so it can be used from the DDP
+ * thread and the UI thread.
+ * @author kenyee
+ */
+public class ViewportBounds {
+    private final double mSouth;
+    private final double mWest;
+    private final double mNorth;
+    private final double mEast;
+
+    /**
+     * Constructor
+     * @param south southern latitude
+     * @param west western longitude
+     * @param north northern latitude
+     * @param east eastern longitude
+     */
+    public ViewportBounds(double south, double west, double north, double east) {
+        mSouth = south;
+        mWest = west;
+        mNorth = north;
+        mEast = east;
+    }
+
+    /**
+     * Gets southern latitude of box
+     * @return southern latitude
+     */
+    public double getSouth() {
+        return mSouth;
+    }
+
+    /**
+     * Gets western longitude of box
+     * @return western longitude
+     */
+    public double getWest() {
+        return mWest;
+    }
+
+    /**
+     * Gets northern latitude of box
+     * @return northern latitude
+     */
+    public double getNorth() {
+        return mNorth;
+    }
+
+    /**
+     * Gets eastern longitude of box
+     * @return eastern longitude
+     */
+    public double getEast() {
+        return mEast;
+    }
+
+    /**
+     * Gets width of box in degrees of longitude
+     * @return longitude span (0 to 360)
+     */
+    public double getLonSpan() {
+        return (mWest > mEast) ? (mEast + 360.0 - mWest) : (mEast - mWest);
+    }
+
+    /**
+     * Gets height of box in degrees of latitude
+     * @return latitude span
+     */
+    public double getLatSpan() {
+        return mNorth - mSouth;
+    }
+
+    /**
+     * Makes a bigger box with a margin around this one
+     * @param fraction margin on each side as a fraction of this box's size
+     * @return padded box, clamped to the poles and whole world
+     */
+    public ViewportBounds pad(double fraction) {
+        double latPad = getLatSpan() * fraction;
+        double lonPad = getLonSpan() * fraction;
+        double south = Math.max(-90.0, mSouth - latPad);
+        double north = Math.min(90.0, mNorth + latPad);
+        if (getLonSpan() + 2 * lonPad >= 360.0) {
+            return new ViewportBounds(south, -180.0, north, 180.0);
+        }
+        return new ViewportBounds(south, wrapLon(mWest - lonPad),
+                north, wrapLon(mEast + lonPad));
+    }
+
+    /**
+     * Whether another box is completely inside this one
+     * @param other box to check
+     * @return true if other is inside this box
+     */
+    public boolean contains(ViewportBounds other) {
+        if ((other.mSouth < mSouth) || (other.mNorth > mNorth)) {
+            return false;
+        }
+        if (getLonSpan() >= 360.0) {
+            return true;
+        }
+        // compare longitudes as offsets east of our western edge
+        double westOffset = eastOffset(other.mWest);
+        return (westOffset + other.getLonSpan()) <= getLonSpan();
+    }
+
+    /**
+     * Gets subscription parameter for the parties publication
+     * @return map with south/west/north/east fields
+     */
+    public Map<String, Object> toParams() {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("south", mSouth);
+        params.put("west", mWest);
+        params.put("north", mNorth);
+        params.put("east", mEast);
+        return params;
+    }
+
+    /**
+     * Gets how far east of our western edge a longitude is
+     */
+    private double eastOffset(double lon) {
+        double offset = lon - mWest;
+        return (offset < 0) ? (offset + 360.0) : offset;
+    }
+
+    /**
+     * Wraps a longitude into -180 to 180
+     */
+    private static double wrapLon(double lon) {
+        if (lon > 180.0) {
+            return lon - 360.0;
+        }
+        if (lon < -180.0) {
+            return lon + 360.0;
+        }
+        return lon;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + mSouth + "," + mWest + " - " + mNorth + "," + mEast + "]";
+    }
+}